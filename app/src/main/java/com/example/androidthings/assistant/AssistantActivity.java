@@ -25,8 +25,10 @@ import android.media.AudioRecord;
 import android.media.AudioTrack;
 import android.media.MediaRecorder;
 import android.os.Bundle;
+import android.os.Debug;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.util.Log;
 import android.widget.ArrayAdapter;
@@ -42,24 +44,22 @@ import com.google.assistant.embedded.v1alpha1.ConverseConfig;
 import com.google.assistant.embedded.v1alpha1.ConverseRequest;
 import com.google.assistant.embedded.v1alpha1.ConverseResponse;
 import com.google.assistant.embedded.v1alpha1.ConverseState;
-import com.google.assistant.embedded.v1alpha1.EmbeddedAssistantGrpc;
 import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
 
 import org.json.JSONException;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Properties;
 
+import admobilize.matrix.io.AudioMetrics;
 import admobilize.matrix.io.MatrixDriver;
-import ai.kitt.snowboy.AppResCopy;
 import ai.kitt.snowboy.Constants;
+import ai.kitt.snowboy.ResourceInstaller;
 import ai.kitt.snowboy.SnowboyDetect;
-import io.grpc.ManagedChannel;
-import io.grpc.ManagedChannelBuilder;
-import io.grpc.auth.MoreCallCredentials;
 import io.grpc.stub.StreamObserver;
 
 import static ai.kitt.snowboy.Constants.ACTIVE_RES;
@@ -82,18 +82,53 @@ public class AssistantActivity extends Activity implements Button.OnButtonEventL
     private static final int ENCODING = AudioFormat.ENCODING_PCM_16BIT;
     private static final int DEFAULT_VOLUME = 100;
     private static final long INTERVAL_BUTTON_PRESSED = 3000;
+    private static final long INTERVAL_METRICS_REPORT = 60000;
 
+    // LINEAR16, or FLAC to compress audio_in on the assistant thread for slow uplinks
     private static AudioInConfig.Encoding ENCODING_INPUT = AudioInConfig.Encoding.LINEAR16;
+    // LINEAR16, or MP3 / OPUS_IN_OGG decoded as the chunks arrive to save download bytes
     private static AudioOutConfig.Encoding ENCODING_OUTPUT = AudioOutConfig.Encoding.LINEAR16;
 
     public static final int SAMPLE_BLOCK_SIZE = 1024;
+    private static final int AUDIO_IN_POOL_SIZE = 4;
+    private static final int PRE_ROLL_MS = 1500;
+    // Capture the recorder holds while the assistant thread is busy opening the stream;
+    // a cold stream takes a few hundred ms, longer than that on a bad link
+    private static final int AUDIO_RECORD_BUFFER_MS = 1000;
+    private static final int PLAYBACK_PREBUFFER_MS = 150;
+    private static final int PLAYBACK_BUFFER_MS = 10000;
+    // Skip the hotword detector on silent blocks, the context before speech is replayed to it
+    private static final boolean VAD_GATE = true;
+    private static final int VAD_CONTEXT_MS = 400;
+    private static final int VAD_HANGOVER_MS = 600;
+    // Hotword sensitivity and gain follow the noise floor between these bounds
+    private static final float SNOWBOY_MIN_SENSITIVITY = 0.45f;
+    private static final float SNOWBOY_MAX_SENSITIVITY = 0.65f;
+    private static final float SNOWBOY_MIN_GAIN = 1.0f;
+    private static final float SNOWBOY_MAX_GAIN = 2.0f;
+    // the mic array already beamforms and cancels the echo
+    private static final boolean SNOWBOY_APPLY_FRONTEND = false;
+    // A manual start this soon after speech the detector did not catch counts as a miss
+    private static final long HOTWORD_MISS_WINDOW_NS = 5000000000L;
+    // Speech this soon after a detection or a request is its tail, not a missed hotword
+    private static final long HOTWORD_MISS_GUARD_NS = 2000000000L;
+    // Comma separated .umdl / .pmdl files in the workspace, all run by one detector.
+    // The first set starts a conversation, the second only stops an answer.
+    private static final String HOTWORD_ASSISTANT_MODELS = ACTIVE_UMDL;
+    private static final String HOTWORD_STOP_MODELS = "";
+    // Overrides both sets with its "assistant" and "stop" keys, reloaded whenever it is written
+    private static final String HOTWORD_CONFIG = "hotwords.properties";
+    // Replaced detectors kept alive per model set, switching back reuses them
+    private static final int DETECTOR_POOL_IDLE = 1;
 
     // Snowboy wakeword
     private int preVolume = -1;
     private static String strEnvWorkSpace = Constants.DEFAULT_WORK_SPACE;
-    private String activeModel = strEnvWorkSpace+ACTIVE_UMDL;
     private String commonRes = strEnvWorkSpace+ACTIVE_RES;
     private SnowboyDetect detector;
+    private ModelRegistry mModels;
+    private long mCreateStartMs;
+    private final AudioMetrics.Histogram mDetectorReadyMs = AudioMetrics.histogram("startup.detector_ready_ms");
 
     private static final AudioFormat AUDIO_FORMAT_STEREO =
             new AudioFormat.Builder()
@@ -118,87 +153,118 @@ public class AssistantActivity extends Activity implements Button.OnButtonEventL
     private static final String ASSISTANT_ENDPOINT = "embeddedassistant.googleapis.com";
 
     // gRPC client and stream observers.
-    private EmbeddedAssistantGrpc.EmbeddedAssistantStub mAssistantService;
+    private AssistantConnection mAssistantConnection;
     private StreamObserver<ConverseRequest> mAssistantRequestObserver;
-    private StreamObserver<ConverseResponse> mAssistantResponseObserver =
-            new StreamObserver<ConverseResponse>() {
-        @Override
-        public void onNext(ConverseResponse value) {
-            switch (value.getConverseResponseCase()) {
-                case EVENT_TYPE:
-                    Log.d(TAG, "converse response event: " + value.getEventType());
-                    if(value.getEventType()== ConverseResponse.EventType.END_OF_UTTERANCE){
-                        mAssistantHandler.post(mStopAssistantRequest);
-                    }
-                    break;
-                case RESULT:
-                    final String spokenRequestText = value.getResult().getSpokenRequestText();
-                    mConversationState = value.getResult().getConversationState();
-                    if (value.getResult().getVolumePercentage() != 0) {
-                        mVolumePercentage = value.getResult().getVolumePercentage();
-                        Log.i(TAG, "assistant volume changed: " + mVolumePercentage);
-                        float newVolume = AudioTrack.getMaxVolume() * mVolumePercentage / 100.0f;
-                        mAudioTrack.setVolume(newVolume);
-                        // Update our preferences
-                        SharedPreferences.Editor editor = PreferenceManager.
-                                getDefaultSharedPreferences(AssistantActivity.this).edit();
-                        editor.putFloat(PREF_CURRENT_VOLUME, newVolume);
-                        editor.apply();
-                    }
-                    if (!spokenRequestText.isEmpty()) {
-                        Log.i(TAG, "assistant request text: " + spokenRequestText);
-                        mAssistantHandler.post(mStopAssistantRequest);
-                        mMainHandler.post(new Runnable() {
-                            @Override
-                            public void run() {
-                                mAssistantRequestsAdapter.add(spokenRequestText);
+
+    // Every request gets its own response observer tagged with the turn it belongs
+    // to: callbacks of an older call (a cancelled one finishing late) are ignored
+    // so they cannot end the response of the current turn.
+    private final Object mTurnLock = new Object();
+    private volatile int mTurn;
+    private int mDecoderTurn; // gRPC callback threads only
+
+    private StreamObserver<ConverseResponse> newResponseObserver(final int turn) {
+        return new StreamObserver<ConverseResponse>() {
+            @Override
+            public void onNext(ConverseResponse value) {
+                if (turn != mTurn) return;
+                switch (value.getConverseResponseCase()) {
+                    case EVENT_TYPE:
+                        Log.d(TAG, "converse response event: " + value.getEventType());
+                        if(value.getEventType()== ConverseResponse.EventType.END_OF_UTTERANCE){
+                            mAssistantHandler.post(mStopAssistantRequest);
+                        }
+                        break;
+                    case RESULT:
+                        final String spokenRequestText = value.getResult().getSpokenRequestText();
+                        mConversationState = value.getResult().getConversationState();
+                        if (value.getResult().getVolumePercentage() != 0) {
+                            mVolumePercentage = value.getResult().getVolumePercentage();
+                            Log.i(TAG, "assistant volume changed: " + mVolumePercentage);
+                            float newVolume = AudioTrack.getMaxVolume() * mVolumePercentage / 100.0f;
+                            mAudioTrack.setVolume(newVolume);
+                            // Update our preferences
+                            SharedPreferences.Editor editor = PreferenceManager.
+                                    getDefaultSharedPreferences(AssistantActivity.this).edit();
+                            editor.putFloat(PREF_CURRENT_VOLUME, newVolume);
+                            editor.apply();
+                        }
+                        if (!spokenRequestText.isEmpty()) {
+                            mHeardRequest = true;
+                            Log.i(TAG, "assistant request text: " + spokenRequestText);
+                            mAssistantHandler.post(mStopAssistantRequest);
+                            mMainHandler.post(new Runnable() {
+                                @Override
+                                public void run() {
+                                    mAssistantRequestsAdapter.add(spokenRequestText);
+                                }
+                            });
+                        }
+                        break;
+                    case AUDIO_OUT:
+                        if (mAudioOutDecoder != null) {
+                            if (mDecoderTurn != turn) { // left over from an interrupted turn
+                                mAudioOutDecoder.abort();
+                                mDecoderTurn = turn;
                             }
-                        });
-                    }
-                    break;
-                case AUDIO_OUT:
-                    final ByteBuffer audioData =
-                            ByteBuffer.wrap(value.getAudioOut().getAudioData().toByteArray());
-                    Log.d(TAG, "converse audio size: " + audioData.remaining());
-                    mAudioTrack.write(audioData, audioData.remaining(), AudioTrack.WRITE_BLOCKING);
-                    if (mLed != null) {
-                        try {
-                            mLed.setValue(!mLed.getValue());
-                        } catch (IOException e) {
-                            Log.w(TAG, "error toggling LED:", e);
+                            mAudioOutDecoder.feed(value.getAudioOut().getAudioData());
+                        } else {
+                            mAudioPlayer.write(value.getAudioOut().getAudioData(), SAMPLE_RATE);
                         }
-                    }
-                    break;
-                case ERROR:
-                    Log.e(TAG, "converse response error: " + value.getError());
-                    break;
+                        if (mLed != null) {
+                            try {
+                                mLed.setValue(!mLed.getValue());
+                            } catch (IOException e) {
+                                Log.w(TAG, "error toggling LED:", e);
+                            }
+                        }
+                        break;
+                    case ERROR:
+                        Log.e(TAG, "converse response error: " + value.getError());
+                        break;
+                }
             }
-        }
 
-        @Override
-        public void onError(Throwable t) {
-            Log.e(TAG, "converse error:", t);
-        }
+            @Override
+            public void onError(Throwable t) {
+                Log.e(TAG, "converse error:", t);
+                synchronized (mTurnLock) {
+                    if (turn != mTurn) return;
+                    mResponseActive = false;
+                }
+                if (mAudioOutDecoder != null) mAudioOutDecoder.abort();
+                mAudioPlayer.endOfResponse();
+            }
 
-        @Override
-        public void onCompleted() {
-            Log.i(TAG, "assistant response finished");
-//            mAssistantHandler.post(mStopAssistantRequest);
-            if (mLed != null) {
-                try {
-                    mLed.setValue(false);
-                } catch (IOException e) {
-                    Log.e(TAG, "error turning off LED:", e);
+            @Override
+            public void onCompleted() {
+                Log.i(TAG, "assistant response finished");
+                synchronized (mTurnLock) {
+                    if (turn != mTurn) return;
+                    mResponseActive = false;
+                    if (mHotwordTurn && !mHeardRequest) mSensitivity.falseTrigger();
+                }
+                if (mAudioOutDecoder != null) mAudioOutDecoder.finish();
+                mAudioPlayer.endOfResponse();
+//                mAssistantHandler.post(mStopAssistantRequest);
+                if (mLed != null) {
+                    try {
+                        mLed.setValue(false);
+                    } catch (IOException e) {
+                        Log.e(TAG, "error turning off LED:", e);
+                    }
                 }
             }
-        }
-    };
+        };
+    }
 
     // Button emulate Handler
     private Handler mButtonEmulateHandler = new Handler();
 
     // Audio playback and recording objects.
     private AudioTrack mAudioTrack;
+    private AudioOutDecoder mAudioOutDecoder;
+    private AudioPlayer mAudioPlayer;
     private AudioRecord mAudioRecord;
     private int mVolumePercentage = DEFAULT_VOLUME;
 
@@ -216,7 +282,18 @@ public class AssistantActivity extends Activity implements Button.OnButtonEventL
         @Override
         public void run() {
             Log.i(TAG, "starting assistant request");
-            mAssistantRequestObserver = mAssistantService.converse(mAssistantResponseObserver);
+            mAssistantHandler.removeCallbacks(mSnowboyDetectRequest);
+            mAssistantHandler.removeCallbacks(mStreamAssistantRequest);
+            mAssistantHandler.removeCallbacks(mStopAssistantRequest);
+            int turn;
+            synchronized (mTurnLock) {
+                turn = ++mTurn;
+                mResponseActive = true;
+                mHotwordTurn = mPreRollPending;
+                mHeardRequest = false;
+                mAudioPlayer.startResponse();
+            }
+            mAssistantRequestObserver = mAssistantConnection.converse(newResponseObserver(turn));
                 ConverseConfig.Builder converseConfigBuilder =
                         ConverseConfig.newBuilder()
                                 .setAudioInConfig(AudioInConfig.newBuilder()
@@ -237,44 +314,140 @@ public class AssistantActivity extends Activity implements Button.OnButtonEventL
             mAssistantRequestObserver.onNext(ConverseRequest.newBuilder()
                     .setConfig(converseConfigBuilder.build())
                     .build());
+            mFlacEncoder.reset();
+            if (mPreRollPending) {
+                streamPreRoll();
+                mPreRollPending = false;
+            }
             mAssistantHandler.post(mStreamAssistantRequest);
         }
     };
 
+    // Audio kept while detecting, replayed right after the config message so the
+    // hotword and the first words are not lost while the stream spins up.
+    private final PreRollBuffer mPreRoll = new PreRollBuffer(SAMPLE_RATE * PRE_ROLL_MS / 1000);
+    private boolean mPreRollPending;
+
+    private void streamPreRoll() {
+        int bytes = 0;
+        mPreRoll.rewind();
+        while (true) {
+            ByteBuffer audioData = mAudioInPool[mAudioInPoolIndex];
+            int result = mPreRoll.read(audioData.array(), 0, audioData.capacity());
+            if (result == 0) break;
+            mAudioInPoolIndex = (mAudioInPoolIndex + 1) % AUDIO_IN_POOL_SIZE;
+            audioData.clear();
+            audioData.limit(result);
+            sendAudioIn(audioData);
+            bytes += result;
+        }
+        mPreRoll.clear();
+        Log.d(TAG, "pre-roll streamed: " + (bytes * 1000 / (SAMPLE_RATE * 2)) + "ms");
+    }
+
+    // Recycled audio_in blocks. gRPC serializes the request inside onNext, so a block
+    // is free again long before it comes around, and wrapping it avoids our own copy.
+    private final ByteBuffer[] mAudioInPool = new ByteBuffer[AUDIO_IN_POOL_SIZE];
+    {
+        for (int i = 0; i < AUDIO_IN_POOL_SIZE; i++) {
+            mAudioInPool[i] = ByteBuffer.wrap(new byte[SAMPLE_BLOCK_SIZE]);
+        }
+    }
+    private int mAudioInPoolIndex;
+
     private Runnable mStreamAssistantRequest = new Runnable() {
         @Override
         public void run() {
-            ByteBuffer audioData = ByteBuffer.allocateDirect(SAMPLE_BLOCK_SIZE);
-            int result =
-                    mAudioRecord.read(audioData, audioData.capacity(), AudioRecord.READ_BLOCKING);
+            if (mAssistantRequestObserver == null) return; // cancelled by a barge-in
+            ByteBuffer audioData = mAudioInPool[mAudioInPoolIndex];
+            mAudioInPoolIndex = (mAudioInPoolIndex + 1) % AUDIO_IN_POOL_SIZE;
+            int result = mAudioRecord.read(audioData.array(), 0, audioData.capacity(),
+                    AudioRecord.READ_BLOCKING);
             if (result < 0) {
                 Log.e(TAG, "error reading from audio stream:" + result);
                 return;
             }
 //            Log.d(TAG, "streaming ConverseRequest: " + result);
-            mAssistantRequestObserver.onNext(ConverseRequest.newBuilder()
-                    .setAudioIn(ByteString.copyFrom(audioData))
-                    .build());
+            audioData.clear();
+            audioData.limit(result);
+            sendAudioIn(audioData);
             mAssistantHandler.post(mStreamAssistantRequest);
         }
     };
 
+    // FLAC frames are encoded as blocks are captured and sent from their own recycled buffers
+    private final FlacEncoder mFlacEncoder = new FlacEncoder(SAMPLE_RATE, SAMPLE_BLOCK_SIZE / 2);
+    private final ByteBuffer[] mFlacPool = new ByteBuffer[AUDIO_IN_POOL_SIZE];
+    {
+        for (int i = 0; i < AUDIO_IN_POOL_SIZE; i++) {
+            mFlacPool[i] = ByteBuffer.wrap(new byte[mFlacEncoder.maxEncodedSize(SAMPLE_BLOCK_SIZE)]);
+        }
+    }
+    private int mFlacPoolIndex;
+    private long mFlacPcmBytes;
+    private long mFlacBytes;
+    private long mFlacCpuNs;
+    private final AudioMetrics.Histogram mFlacEncodeUs = AudioMetrics.histogram("flac.encode_us");
+
+    private void sendAudioIn(ByteBuffer audioData) {
+        if (ENCODING_INPUT != AudioInConfig.Encoding.FLAC) {
+            mAssistantRequestObserver.onNext(ConverseRequest.newBuilder()
+                    .setAudioIn(UnsafeByteOperations.unsafeWrap(audioData))
+                    .build());
+            return;
+        }
+        ByteBuffer flac = mFlacPool[mFlacPoolIndex];
+        long start = Debug.threadCpuTimeNanos();
+        int encoded = mFlacEncoder.encode(audioData.array(), 0, audioData.limit(), flac.array(), 0);
+        long cpuNs = Debug.threadCpuTimeNanos() - start;
+        mFlacCpuNs += cpuNs;
+        mFlacEncodeUs.record(cpuNs / 1000);
+        mFlacPcmBytes += audioData.limit();
+        sendFlac(flac, encoded);
+    }
+
+    private void flushAudioIn() {
+        if (ENCODING_INPUT != AudioInConfig.Encoding.FLAC) return;
+        sendFlac(mFlacPool[mFlacPoolIndex], mFlacEncoder.flush(mFlacPool[mFlacPoolIndex].array(), 0));
+        if (mFlacPcmBytes > 0) {
+            Log.i(TAG, "[FLAC] " + mFlacPcmBytes + " PCM bytes sent as " + mFlacBytes + " ("
+                    + (mFlacBytes * 100 / mFlacPcmBytes) + "%), cpu "
+                    + (mFlacCpuNs / 1000 * SAMPLE_RATE * 2 / mFlacPcmBytes) + "us per second of audio");
+        }
+        mFlacEncoder.reset();
+        mFlacPcmBytes = 0;
+        mFlacBytes = 0;
+        mFlacCpuNs = 0;
+    }
+
+    private void sendFlac(ByteBuffer flac, int encoded) {
+        if (encoded == 0) return;
+        mFlacPoolIndex = (mFlacPoolIndex + 1) % AUDIO_IN_POOL_SIZE;
+        flac.clear();
+        flac.limit(encoded);
+        mAssistantRequestObserver.onNext(ConverseRequest.newBuilder()
+                .setAudioIn(UnsafeByteOperations.unsafeWrap(flac))
+                .build());
+        mFlacBytes += encoded;
+    }
+
     private Runnable mStopAssistantRequest = new Runnable() {
         @Override
         public void run() {
+            // posted on end of utterance, on the recognized text and on button release
+            if (mAssistantRequestObserver == null) return;
             Log.i(TAG, "ending assistant request");
             mAssistantHandler.removeCallbacks(mStreamAssistantRequest);
-            if (mAssistantRequestObserver != null) {
-                mAssistantRequestObserver.onCompleted();
-                mAssistantRequestObserver = null;
-            }
-            mAudioRecord.stop();
-            matrix.micArray.stop();
-            mAudioTrack.play();
+            flushAudioIn();
+            mAssistantRequestObserver.onCompleted();
+            mAssistantRequestObserver = null;
+            mAssistantConnection.prewarm();
+            ignoreSpeech(System.nanoTime());
+            matrix.stopDirectionDisplay();
             matrix.everloop.drawProgress(34);
             matrix.everloop.write();
-            matrix.micArray.resume();
-            mAudioRecord.startRecording();
+            // the recorder keeps running: the answer can be interrupted with the hotword
+            mAssistantHandler.removeCallbacks(mSnowboyDetectRequest);
             mAssistantHandler.post(mSnowboyDetectRequest);
         }
     };
@@ -288,11 +461,12 @@ public class AssistantActivity extends Activity implements Button.OnButtonEventL
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         Log.i(TAG, "starting assistant demo");
+        mCreateStartMs = SystemClock.elapsedRealtime();
 
         setContentView(R.layout.activity_main);
         ListView assistantRequestsListView = (ListView)findViewById(R.id.assistantRequestsListView);
 
-        AppResCopy.copyResFromAssetsToSD(this);
+        mModels = new ModelRegistry(strEnvWorkSpace, new DetectorPool(DETECTOR_POOL_IDLE));
 
         mAssistantRequestsAdapter =
                 new ArrayAdapter<String>(this, android.R.layout.simple_list_item_1,
@@ -350,6 +524,13 @@ public class AssistantActivity extends Activity implements Button.OnButtonEventL
                 .setBufferSizeInBytes(outputBufferSize)
                 .build();
         mAudioTrack.play();
+        mAudioPlayer = new AudioPlayer(mAudioTrack, PLAYBACK_PREBUFFER_MS, PLAYBACK_BUFFER_MS);
+        if (matrix != null && matrix.echoCanceller != null) {
+            mAudioPlayer.setEchoCanceller(matrix.echoCanceller);
+        }
+        if (ENCODING_OUTPUT != AudioOutConfig.Encoding.LINEAR16) {
+            mAudioOutDecoder = new AudioOutDecoder(ENCODING_OUTPUT, mAudioPlayer);
+        }
         int inputBufferSize = AudioRecord.getMinBufferSize(AUDIO_FORMAT_IN_MONO.getSampleRate(),
                 AUDIO_FORMAT_IN_MONO.getChannelMask(),
                 AUDIO_FORMAT_IN_MONO.getEncoding());
@@ -357,7 +538,8 @@ public class AssistantActivity extends Activity implements Button.OnButtonEventL
         mAudioRecord = new AudioRecord.Builder()
                 .setAudioSource(MediaRecorder.AudioSource.MIC)
                 .setAudioFormat(AUDIO_FORMAT_IN_MONO)
-                .setBufferSizeInBytes(SAMPLE_BLOCK_SIZE)
+                .setBufferSizeInBytes(Math.max(inputBufferSize,
+                        SAMPLE_RATE * 2 * AUDIO_RECORD_BUFFER_MS / 1000))
                 .build();
         // Set volume from preferences
         SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(this);
@@ -367,22 +549,32 @@ public class AssistantActivity extends Activity implements Button.OnButtonEventL
         // Scale initial volume to be a percent.
         mVolumePercentage = Math.round(initVolume * 100.0f / maxVolume);
 
-        ManagedChannel channel = ManagedChannelBuilder.forTarget(ASSISTANT_ENDPOINT).build();
         try {
-            mAssistantService = EmbeddedAssistantGrpc.newStub(channel)
-                    .withCallCredentials(MoreCallCredentials.from(
-                            Credentials.fromResource(this, R.raw.credentials)
-                    ));
+            mAssistantConnection = AssistantConnection.create(ASSISTANT_ENDPOINT,
+                    Credentials.fromResource(this, R.raw.credentials));
         } catch (IOException|JSONException e) {
             Log.e(TAG, "error creating assistant service:", e);
         }
         // TODO: implement wakeword like Kitt.ai or sensory
 //        mButtonEmulateHandler.post(mButtonEmulateRunnable);
 //        mAssistantHandler.post(mStartAssistantRequest);
-        mAssistantHandler.post(mSnowboyInsance);
+        // the detector starts once its models are in the workspace
+        new ResourceInstaller(this, Constants.ASSETS_RES_DIR, strEnvWorkSpace)
+                .install(mAssistantHandler, mSnowboyInsance);
+        mMainHandler.postDelayed(mMetricsReport, INTERVAL_METRICS_REPORT);
+        Log.i(TAG, "[STARTUP] onCreate took " + (SystemClock.elapsedRealtime() - mCreateStartMs) + "ms");
 
     }
 
+    // Periodic snapshot of the audio path metrics, one JSON line per interval
+    private Runnable mMetricsReport = new Runnable() {
+        @Override
+        public void run() {
+            Log.i(TAG, "[METRICS] " + AudioMetrics.snapshot());
+            mMainHandler.postDelayed(mMetricsReport, INTERVAL_METRICS_REPORT);
+        }
+    };
+
     @Override
     public void onButtonEvent(Button button, boolean pressed) {
         try {
@@ -393,7 +585,21 @@ public class AssistantActivity extends Activity implements Button.OnButtonEventL
             Log.d(TAG, "error toggling LED:", e);
         }
         if (pressed) {
-            mAssistantHandler.post(mStartAssistantRequest);
+            // a press that interrupts an answer or a request is not a missed hotword
+            final boolean idle = mDetecting && !mResponseActive && !mAudioPlayer.isActive();
+            mDetecting = false;
+            final long pressedNs = System.nanoTime();
+            // the call in flight is cancelled on the thread that streams it
+            mAssistantHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (idle && mLastSpeechNs != 0 && pressedNs - mLastSpeechNs < HOTWORD_MISS_WINDOW_NS) {
+                        mSensitivity.miss();
+                    }
+                    bargeIn(pressedNs);
+                    mStartAssistantRequest.run();
+                }
+            });
         } else {
             mAssistantHandler.post(mStopAssistantRequest);
         }
@@ -403,10 +609,20 @@ public class AssistantActivity extends Activity implements Button.OnButtonEventL
     protected void onDestroy() {
         super.onDestroy();
         Log.i(TAG, "destroying assistant demo");
+        mMainHandler.removeCallbacks(mMetricsReport);
+        mDetecting = false;
+        if (mAssistantConnection != null) {
+            mAssistantConnection.shutdown();
+            mAssistantConnection = null;
+        }
         if (mAudioRecord != null) {
             mAudioRecord.stop();
             mAudioRecord = null;
         }
+        if (mAudioPlayer != null) {
+            mAudioPlayer.release();
+            mAudioPlayer = null;
+        }
         if (mAudioTrack != null) {
             mAudioTrack.stop();
             mAudioTrack = null;
@@ -455,6 +671,8 @@ public class AssistantActivity extends Activity implements Button.OnButtonEventL
             @Override
             public void run() {
                 mAssistantHandler.removeCallbacks(mStreamAssistantRequest);
+                mModels.release();
+                detector = null;
             }
         });
         mAssistantThread.quitSafely();
@@ -498,46 +716,230 @@ public class AssistantActivity extends Activity implements Button.OnButtonEventL
             matrix.everloop.write();
             Log.w(TAG, "=== starting wakeword recognition ===");
             Log.d(TAG, "commonRes:"+commonRes);
-            Log.d(TAG, "activeModel:"+activeModel);
-            detector = new SnowboyDetect(commonRes, activeModel);
-            detector.SetSensitivity("0.6");         // Sensitivity for each hotword
+            detector = mModels.install(newHotwords(HOTWORD_ASSISTANT_MODELS, HOTWORD_STOP_MODELS));
+            Log.d(TAG, "models:"+mModels.hotwords().getModels());
+            configureDetector();
+            long readyMs = SystemClock.elapsedRealtime() - mCreateStartMs;
+            mDetectorReadyMs.record(readyMs);
+            Log.i(TAG, "[STARTUP] hotword detection ready " + readyMs + "ms after onCreate");
+            mModels.watch(HOTWORD_CONFIG, new ModelRegistry.ConfigListener() {
+                @Override
+                public void onConfigChanged(Properties config) {
+                    mModels.load(newHotwords(
+                            config.getProperty("assistant", HOTWORD_ASSISTANT_MODELS),
+                            config.getProperty("stop", HOTWORD_STOP_MODELS)));
+                }
+            });
             mAudioRecord.startRecording();
             mAssistantHandler.post(mSnowboyDetectRequest);
         }
     };
 
-    byte[] audioBuffer = new byte[SAMPLE_BLOCK_SIZE];
+    private HotwordManager newHotwords(String assistantModels, String stopModels) {
+        HotwordManager hotwords = new HotwordManager(commonRes);
+        hotwords.addAll(strEnvWorkSpace, assistantModels, mAssistantHotword);
+        hotwords.addAll(strEnvWorkSpace, stopModels, mStopHotword);
+        return hotwords;
+    }
+
+    private void configureDetector() {
+        detector.ApplyFrontend(SNOWBOY_APPLY_FRONTEND);
+        mSensitivity.reset();
+        mSensitivity.apply(detector);
+    }
+
+    // Set while a response is arriving, playback may go on after it is cleared
+    private volatile boolean mResponseActive;
+    private final AudioMetrics.Histogram mBargeInSilenceUs =
+            AudioMetrics.histogram("bargein.interrupt_to_silence_us");
+
+    // Stops an answer that is still playing or arriving when the user talks over it.
+    // Assistant thread only: a cancelled call must not get any more requests, so the
+    // request in progress is dropped without flushing or completing it.
+    private void bargeIn(long interruptNs) {
+        boolean cancelled;
+        synchronized (mTurnLock) {
+            if (!mResponseActive && !mAudioPlayer.isActive()) return;
+            // only drop what is still arriving when a live call was really cancelled
+            cancelled = mResponseActive && mAssistantConnection.cancel();
+            if (cancelled) mResponseActive = false;
+            mAudioPlayer.flush(cancelled);
+        }
+        if (cancelled && mAssistantRequestObserver != null) {
+            mAssistantHandler.removeCallbacks(mStreamAssistantRequest);
+            mAssistantRequestObserver = null;
+            mFlacEncoder.reset();
+            mFlacPcmBytes = 0;
+            mFlacBytes = 0;
+            mFlacCpuNs = 0;
+        }
+        long silenceUs = (System.nanoTime() - interruptNs) / 1000;
+        mBargeInSilenceUs.record(silenceUs);
+        Log.i(TAG, "[BARGE-IN] answer interrupted, silent after " + silenceUs + "us"
+                + (cancelled ? ", response cancelled" : ""));
+    }
+
+    private static final long INTERVAL_DETECTION_REPORT_NS = 10000000000L; // 10s
+
+    // Detection runs as one loop on the assistant thread instead of a post per block.
+    // Anything that needs the thread (button press, hotword, destroy) clears mDetecting
+    // first. It does not run while a request is streaming.
+    private volatile boolean mDetecting;
+    private final short[] mDetectBlock = new short[SAMPLE_BLOCK_SIZE / 2];
     long shortsRead = 0;
+    private final AudioMetrics.Histogram mSnowboyBlockUs = AudioMetrics.histogram("snowboy.block_us");
+    private final AudioMetrics.Histogram mSnowboyCpuUs = AudioMetrics.histogram("snowboy.cpu_us");
+    private long mDetectReportStartNs;
+    private int mDetectBlocks;
+    private long mDetectCpuNs;
+    private final VadGate mVadGate =
+            VAD_GATE ? new VadGate(SAMPLE_RATE, VAD_CONTEXT_MS, VAD_HANGOVER_MS) : null;
+    private final short[] mVadContext = new short[SAMPLE_BLOCK_SIZE / 2];
+    private final AudioMetrics.Counter mDetectSkippedTotal = AudioMetrics.counter("snowboy.blocks_skipped");
+    private int mDetectSkipped;
+    private final SensitivityController mSensitivity = new SensitivityController(
+            SNOWBOY_MIN_SENSITIVITY, SNOWBOY_MAX_SENSITIVITY, SNOWBOY_MIN_GAIN, SNOWBOY_MAX_GAIN);
+    // Speech heard while idle, neither the answer playing nor the tail of a turn
+    private volatile long mLastSpeechNs;
+    private long mSpeechIgnoredUntilNs;
+    // Whether the current turn was started by the hotword and heard a request, to count
+    // false triggers. Set when the turn starts, under mTurnLock.
+    private volatile boolean mHotwordTurn;
+    private volatile boolean mHeardRequest;
+
     private Runnable mSnowboyDetectRequest = new Runnable() {
 
         @Override
         public void run() {
-            mAudioRecord.read(audioBuffer, 0, audioBuffer.length);
-            // Converts to short array.
-            short[] audioData = new short[audioBuffer.length / 2];
-            ByteBuffer.wrap(audioBuffer).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().get(audioData);
-
-            shortsRead += audioData.length;
-            // Snowboy hotword detection.
-            int result = detector.RunDetection(audioData, audioData.length);
-//            Log.e(TAG, "result: "+result);
-
-            if (result == -2) {
-                // post a higher CPU usage:
-                // sendMessage(MsgEnum.MSG_VAD_NOSPEECH, null);
-            } else if (result == -1) {
-                Log.e(TAG, "Unknown Detection Error");
-            } else if (result == 0) {
-                // post a higher CPU usage:
-                // sendMessage(MsgEnum.MSG_VAD_SPEECH, null);
-            } else if (result > 0) {
-                Log.w("== Snowboy: ", "Hotword " + Integer.toString(result) + " detected! ==");
-                matrix.everloop.clear();
-                matrix.everloop.write();
-                mAssistantHandler.post(mStartAssistantRequest);
-                return;
+            if (mAssistantRequestObserver != null) return;
+            mDetecting = true;
+            mDetectReportStartNs = System.nanoTime();
+            while (mDetecting) {
+                int read = mAudioRecord.read(mDetectBlock, 0, mDetectBlock.length);
+                if (read <= 0) {
+                    Log.e(TAG, "error reading from audio stream:" + read);
+                    mDetecting = false;
+                    return;
+                }
+                shortsRead += read;
+                mPreRoll.write(mDetectBlock, read);
+                SnowboyDetect swapped = mModels.swap();
+                if (swapped != null) {
+                    detector = swapped;
+                    configureDetector();
+                }
+                if (mVadGate != null) {
+                    boolean speech = mVadGate.process(mDetectBlock, read);
+                    mSensitivity.update(mVadGate.getNoiseFloor());
+                    if (!speech) {
+                        mDetectSkipped++;
+                        mDetectSkippedTotal.increment();
+                        accountDetection();
+                        continue;
+                    }
+                    long speechNs = System.nanoTime();
+                    if (speechNs > mSpeechIgnoredUntilNs && !mResponseActive && !mAudioPlayer.isActive()) {
+                        mLastSpeechNs = speechNs;
+                    }
+                }
+                mSensitivity.apply(detector);
+                int result = 0;
+                if (mVadGate != null && mVadGate.opened()) result = detectContext();
+                long detectedNs = System.nanoTime();
+                if (result <= 0) {
+                    result = detect(mDetectBlock, read);
+                    detectedNs = System.nanoTime();
+                }
+                accountDetection();
+//                Log.e(TAG, "result: "+result);
+
+                if (result == -2) {
+                    // post a higher CPU usage:
+                    // sendMessage(MsgEnum.MSG_VAD_NOSPEECH, null);
+                } else if (result == -1) {
+                    Log.e(TAG, "Unknown Detection Error");
+                } else if (result == 0) {
+                    // post a higher CPU usage:
+                    // sendMessage(MsgEnum.MSG_VAD_SPEECH, null);
+                } else if (result > 0) {
+                    mModels.hotwords().dispatch(result, detectedNs);
+                    if (!mDetecting) return; // the handler took over the thread
+                }
             }
-            mAssistantHandler.post(mSnowboyDetectRequest);
         }
     };
+
+    private final HotwordManager.Handler mAssistantHotword = new HotwordManager.Handler() {
+        @Override
+        public void onHotword(String model, long detectedNs) {
+            mDetecting = false;
+            mPreRollPending = true;
+            mSensitivity.detected();
+            ignoreSpeech(detectedNs);
+            bargeIn(detectedNs);
+            matrix.everloop.clear();
+            matrix.everloop.write();
+            matrix.startDirectionDisplay();
+            mAssistantHandler.post(mStartAssistantRequest);
+        }
+    };
+
+    // Keeps listening: silences the answer without starting a new conversation
+    private final HotwordManager.Handler mStopHotword = new HotwordManager.Handler() {
+        @Override
+        public void onHotword(String model, long detectedNs) {
+            bargeIn(detectedNs);
+            ignoreSpeech(detectedNs);
+            detector.Reset();
+        }
+    };
+
+    // Assistant thread: speech so far belongs to a turn and cannot make a press a miss
+    private void ignoreSpeech(long nowNs) {
+        mLastSpeechNs = 0;
+        mSpeechIgnoredUntilNs = nowNs + HOTWORD_MISS_GUARD_NS;
+    }
+
+    // Snowboy hotword detection on one block, timed
+    private int detect(short[] block, int count) {
+        long cpuStart = Debug.threadCpuTimeNanos();
+        long start = System.nanoTime();
+        int result = detector.RunDetection(block, count);
+        mSnowboyBlockUs.record((System.nanoTime() - start) / 1000);
+        long cpuNs = Debug.threadCpuTimeNanos() - cpuStart;
+        mSnowboyCpuUs.record(cpuNs / 1000);
+        mDetectBlocks++;
+        mDetectCpuNs += cpuNs;
+        return result;
+    }
+
+    // The gate just opened: start from a clean detector state and catch it up on
+    // the audio skipped right before the speech
+    private int detectContext() {
+        detector.Reset();
+        int count;
+        while ((count = mVadGate.readContext(mVadContext)) > 0) {
+            int result = detect(mVadContext, count);
+            if (result > 0) {
+                mVadGate.clearContext(); // the next opening must not replay this audio
+                return result;
+            }
+        }
+        return 0;
+    }
+
+    private void accountDetection() {
+        long elapsed = System.nanoTime() - mDetectReportStartNs;
+        if (elapsed < INTERVAL_DETECTION_REPORT_NS) return;
+        Log.d(TAG, "[SNOWBOY] blocks/sec: " + (mDetectBlocks * 1000000000L / elapsed)
+                + " cpu/block: " + (mDetectBlocks > 0 ? mDetectCpuNs / mDetectBlocks / 1000 : 0)
+                + "us" + (mVadGate != null ? " skipped: " + mDetectSkipped + " duty cycle: "
+                + Math.round(mVadGate.takeDutyCycle() * 100) + "% noise floor: "
+                + Math.round(mVadGate.getNoiseFloor()) : "")
+                + " live detectors: " + DetectorPool.liveDetectors());
+        mDetectReportStartNs = System.nanoTime();
+        mDetectBlocks = 0;
+        mDetectCpuNs = 0;
+        mDetectSkipped = 0;
+    }
 }
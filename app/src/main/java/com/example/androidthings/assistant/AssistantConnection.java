@@ -0,0 +1,271 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.assistant.embedded.v1alpha1.ConverseRequest;
+import com.google.assistant.embedded.v1alpha1.ConverseResponse;
+import com.google.assistant.embedded.v1alpha1.EmbeddedAssistantGrpc;
+import com.google.auth.oauth2.AccessToken;
+import com.google.auth.oauth2.OAuth2Credentials;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import admobilize.matrix.io.AudioMetrics;
+import io.grpc.ManagedChannel;
+import io.grpc.Status;
+import io.grpc.auth.MoreCallCredentials;
+import io.grpc.okhttp.OkHttpChannelBuilder;
+import io.grpc.stub.StreamObserver;
+
+/**
+ * Keeps the Converse path warm between turns: HTTP/2 keep-alive pings on the
+ * channel, an access token refreshed ahead of its expiry, and a spare Converse
+ * stream opened right after a turn so a follow-up does not pay for stream setup.
+ * The spare lives for a bounded time and is not replaced while the device is
+ * idle. Time from end of utterance to the next response is logged and recorded
+ * per turn.
+ */
+class AssistantConnection {
+
+    private static final String TAG = AssistantConnection.class.getSimpleName();
+
+    private static final long KEEP_ALIVE_DELAY_SEC = 30;
+    private static final long KEEP_ALIVE_TIMEOUT_SEC = 10;
+    private static final long SPARE_STREAM_MAX_AGE_MS = 30000;
+    private static final long TOKEN_REFRESH_MARGIN_MS = 5 * 60 * 1000;
+    private static final long TOKEN_RETRY_MS = 30000;
+
+    private final ManagedChannel mChannel;
+    private final EmbeddedAssistantGrpc.EmbeddedAssistantStub mStub;
+    private final OAuth2Credentials mCredentials;
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    private Turn mSpare; // guarded by this
+    private volatile Turn mActive;
+
+    private final AudioMetrics.Histogram mFirstResponseMs =
+            AudioMetrics.histogram("assistant.first_response_ms");
+
+    static AssistantConnection create(String endpoint, OAuth2Credentials credentials) {
+        ManagedChannel channel = OkHttpChannelBuilder.forTarget(endpoint)
+                .enableKeepAlive(true, KEEP_ALIVE_DELAY_SEC, TimeUnit.SECONDS,
+                        KEEP_ALIVE_TIMEOUT_SEC, TimeUnit.SECONDS)
+                .build();
+        return new AssistantConnection(channel, credentials);
+    }
+
+    private AssistantConnection(ManagedChannel channel, OAuth2Credentials credentials) {
+        mChannel = channel;
+        mCredentials = credentials;
+        mStub = EmbeddedAssistantGrpc.newStub(channel)
+                .withCallCredentials(MoreCallCredentials.from(credentials));
+        mThread = new HandlerThread("assistantConnection");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        mHandler.post(mRefreshToken);
+    }
+
+    /**
+     * Opens a spare Converse stream in the background for the next turn, dropped
+     * if no turn claims it within its lifetime.
+     */
+    void prewarm() {
+        mHandler.removeCallbacks(mOpenSpare);
+        mHandler.post(mOpenSpare);
+    }
+
+    /**
+     * Starts a turn on the spare stream when there is a fresh one, or on a new stream.
+     */
+    StreamObserver<ConverseRequest> converse(StreamObserver<ConverseResponse> responseObserver) {
+        Turn turn;
+        synchronized (this) {
+            turn = mSpare;
+            mSpare = null;
+        }
+        boolean warm = turn != null && turn.isUsable();
+        if (!warm) {
+            if (turn != null) turn.cancel();
+            turn = new Turn();
+        }
+        turn.claim(responseObserver, warm);
+        mActive = turn;
+        return turn.mRequests;
+    }
+
+    /**
+     * Cancels the turn in flight, even after its requests completed. Responses
+     * still on the way are dropped and the turn observer gets a CANCELLED error.
+     * @return false when there was nothing to cancel
+     */
+    boolean cancel() {
+        Turn turn = mActive;
+        if (turn == null || turn.mDead) return false;
+        turn.cancel();
+        return true;
+    }
+
+    void shutdown() {
+        mHandler.removeCallbacksAndMessages(null);
+        synchronized (this) {
+            if (mSpare != null) mSpare.cancel();
+            mSpare = null;
+        }
+        mChannel.shutdown();
+        mThread.quitSafely();
+    }
+
+    private Runnable mOpenSpare = new Runnable() {
+        @Override
+        public void run() {
+            Turn stale = null;
+            synchronized (AssistantConnection.this) {
+                if (mSpare == null || !mSpare.isUsable()) {
+                    stale = mSpare;
+                    mSpare = new Turn();
+                }
+            }
+            if (stale != null) stale.cancel();
+            // gone before the server gives up on an idle stream, the next turn opens its own
+            mHandler.removeCallbacks(mDropSpare);
+            mHandler.postDelayed(mDropSpare, SPARE_STREAM_MAX_AGE_MS);
+        }
+    };
+
+    private Runnable mDropSpare = new Runnable() {
+        @Override
+        public void run() {
+            Turn spare;
+            synchronized (AssistantConnection.this) {
+                spare = mSpare;
+                mSpare = null;
+            }
+            if (spare != null) spare.cancel();
+        }
+    };
+
+    private Runnable mRefreshToken = new Runnable() {
+        @Override
+        public void run() {
+            long delay;
+            try {
+                long expiresIn = expiresInMs(mCredentials.getAccessToken());
+                if (expiresIn < TOKEN_REFRESH_MARGIN_MS) {
+                    long start = SystemClock.elapsedRealtime();
+                    mCredentials.refresh();
+                    Log.i(TAG, "[CONN] access token refreshed in "
+                            + (SystemClock.elapsedRealtime() - start) + "ms");
+                    expiresIn = expiresInMs(mCredentials.getAccessToken());
+                }
+                delay = Math.max(expiresIn - TOKEN_REFRESH_MARGIN_MS, TOKEN_RETRY_MS);
+            } catch (IOException e) {
+                Log.w(TAG, "[CONN] error refreshing access token:", e);
+                delay = TOKEN_RETRY_MS;
+            }
+            mHandler.postDelayed(this, delay);
+        }
+    };
+
+    private static long expiresInMs(AccessToken token) {
+        if (token == null || token.getExpirationTime() == null) return 0;
+        return token.getExpirationTime().getTime() - System.currentTimeMillis();
+    }
+
+    /**
+     * One Converse stream, opened before or when the turn starts. Responses are
+     * forwarded to the turn observer once it is claimed.
+     */
+    private class Turn implements StreamObserver<ConverseResponse> {
+
+        private final StreamObserver<ConverseRequest> mRequests;
+        private final long mOpenedAt = SystemClock.elapsedRealtime();
+        private volatile StreamObserver<ConverseResponse> mTarget;
+        private volatile boolean mDead;
+        private volatile boolean mCancelled;
+        private boolean mWarm;
+        private long mEndOfUtteranceNs;
+        private boolean mFirstResponse = true;
+
+        Turn() {
+            mRequests = mStub.converse(this);
+        }
+
+        boolean isUsable() {
+            return !mDead && SystemClock.elapsedRealtime() - mOpenedAt < SPARE_STREAM_MAX_AGE_MS;
+        }
+
+        void claim(StreamObserver<ConverseResponse> target, boolean warm) {
+            mWarm = warm;
+            mTarget = target;
+        }
+
+        void cancel() {
+            mDead = true;
+            mCancelled = true;
+            try {
+                mRequests.onError(Status.CANCELLED.withDescription(
+                        mTarget == null ? "spare stream recycled" : "turn cancelled")
+                        .asRuntimeException());
+            } catch (IllegalStateException ignored) {
+                // already closed
+            }
+        }
+
+        @Override
+        public void onNext(ConverseResponse value) {
+            StreamObserver<ConverseResponse> target = mTarget;
+            if (target == null || mCancelled) return;
+            if (value.getConverseResponseCase() == ConverseResponse.ConverseResponseCase.EVENT_TYPE) {
+                if (value.getEventType() == ConverseResponse.EventType.END_OF_UTTERANCE) {
+                    mEndOfUtteranceNs = System.nanoTime();
+                }
+            } else if (mFirstResponse && mEndOfUtteranceNs != 0) {
+                mFirstResponse = false;
+                long ms = (System.nanoTime() - mEndOfUtteranceNs) / 1000000;
+                mFirstResponseMs.record(ms);
+                Log.i(TAG, "[CONN] first response " + ms + "ms after end of utterance ("
+                        + (mWarm ? "warm" : "cold") + " stream)");
+            }
+            target.onNext(value);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            mDead = true;
+            StreamObserver<ConverseResponse> target = mTarget;
+            if (target != null) {
+                target.onError(t);
+            } else if (Status.fromThrowable(t).getCode() != Status.Code.CANCELLED) {
+                // not retried, the next turn opens its own stream
+                Log.w(TAG, "[CONN] spare stream failed: " + Status.fromThrowable(t));
+            }
+        }
+
+        @Override
+        public void onCompleted() {
+            mDead = true;
+            StreamObserver<ConverseResponse> target = mTarget;
+            if (target != null) target.onCompleted();
+        }
+    }
+}
@@ -0,0 +1,355 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import com.google.assistant.embedded.v1alpha1.AudioOutConfig;
+import com.google.protobuf.ByteString;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import admobilize.matrix.io.AudioMetrics;
+
+/**
+ * Streaming decoder for compressed audio_out. Every AUDIO_OUT chunk is split
+ * into codec packets (MP3 frames, or Opus packets out of the Ogg pages), fed to
+ * a MediaCodec decoder and whatever PCM is ready goes to the player right
+ * away, so playback starts with the first chunk instead of the whole response.
+ */
+class AudioOutDecoder {
+
+    private static final String TAG = AudioOutDecoder.class.getSimpleName();
+
+    private static final long CODEC_TIMEOUT_US = 10000;
+    private static final long END_OF_STREAM_TIMEOUT_NS = 500000000L; // truncated streams may never end
+    private static final int MAX_PACKET_BYTES = 64 * 1024;
+    private static final int OPUS_SAMPLE_RATE = 48000;
+    private static final long OPUS_SEEK_PREROLL_NS = 80000000;
+
+    private static final int[] MP3_BITRATES_V1 =
+            {0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320, 0};
+    private static final int[] MP3_BITRATES_V2 =
+            {0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160, 0};
+    private static final int[] MP3_SAMPLE_RATES = {44100, 48000, 32000, 0};
+    private static final int[] OPUS_SILK_FRAME_US = {10000, 20000, 40000, 60000};
+    private static final int[] OPUS_CELT_FRAME_US = {2500, 5000, 10000, 20000};
+
+    private final AudioOutConfig.Encoding encoding;
+    private final AudioPlayer player;
+    private final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+    private final AudioMetrics.Counter truncated = AudioMetrics.counter("decode.truncated");
+
+    // compressed bytes not yet split into packets
+    private byte[] pending = new byte[MAX_PACKET_BYTES];
+    private int pendingLength;
+    // Ogg packet being reassembled from lacing segments
+    private byte[] packet = new byte[MAX_PACKET_BYTES];
+    private int packetLength;
+    private int oggPackets;
+    private byte[] mono = new byte[0];
+
+    private MediaCodec codec;
+    private long presentationUs;
+    private int channels = 1;
+    private int sampleRate;
+    private long turnStartNs;
+    private long compressedBytes;
+    private long pcmBytes;
+    private boolean firstPcm;
+
+    AudioOutDecoder(AudioOutConfig.Encoding encoding, AudioPlayer player) {
+        this.encoding = encoding;
+        this.player = player;
+    }
+
+    /**
+     * Decodes one AUDIO_OUT chunk, blocking only while the player buffer is full.
+     */
+    void feed(ByteString chunk) {
+        if (turnStartNs == 0) {
+            turnStartNs = System.nanoTime();
+            firstPcm = true;
+        }
+        compressedBytes += chunk.size();
+        int size = chunk.size();
+        if (pendingLength + size > pending.length) {
+            byte[] bigger = new byte[Math.max(pending.length * 2, pendingLength + size)];
+            System.arraycopy(pending, 0, bigger, 0, pendingLength);
+            pending = bigger;
+        }
+        chunk.copyTo(pending, 0, pendingLength, size);
+        pendingLength += size;
+        int consumed = encoding == AudioOutConfig.Encoding.MP3 ? splitMp3() : splitOgg();
+        System.arraycopy(pending, consumed, pending, 0, pendingLength - consumed);
+        pendingLength -= consumed;
+        drain(false);
+    }
+
+    /**
+     * Queues what is left of the response and releases the codec, giving up on
+     * output the decoder has not produced within half a second. A response cut
+     * short that way is counted as decode.truncated.
+     */
+    void finish() {
+        if (codec != null) {
+            long deadlineNs = System.nanoTime() + END_OF_STREAM_TIMEOUT_NS;
+            int index;
+            while ((index = codec.dequeueInputBuffer(CODEC_TIMEOUT_US)) < 0
+                    && System.nanoTime() - deadlineNs < 0) {
+                drain(false); // make room for the end of stream
+            }
+            if (index >= 0) {
+                codec.queueInputBuffer(index, 0, 0, presentationUs, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                drain(true);
+            } else {
+                Log.w(TAG, "[DECODE] no input buffer for the end of stream, dropping the rest");
+                truncated.increment();
+            }
+        }
+        abort();
+    }
+
+    /**
+     * Releases the codec without playing what is still inside, for failed or interrupted responses.
+     */
+    void abort() {
+        if (codec != null) {
+            codec.stop();
+            codec.release();
+            codec = null;
+        }
+        if (compressedBytes > 0) {
+            Log.i(TAG, "[DECODE] " + encoding + ": " + compressedBytes + " bytes downloaded for "
+                    + pcmBytes + " bytes of PCM");
+        }
+        pendingLength = 0;
+        packetLength = 0;
+        oggPackets = 0;
+        presentationUs = 0;
+        turnStartNs = 0;
+        compressedBytes = 0;
+        pcmBytes = 0;
+    }
+
+    // Returns the bytes consumed, a trailing partial frame waits for the next chunk
+    private int splitMp3() {
+        int pos = 0;
+        while (pendingLength - pos >= 10) {
+            if (pending[pos] == 'I' && pending[pos + 1] == 'D' && pending[pos + 2] == '3') {
+                int tag = 10 + ((pending[pos + 6] & 0x7F) << 21 | (pending[pos + 7] & 0x7F) << 14
+                        | (pending[pos + 8] & 0x7F) << 7 | (pending[pos + 9] & 0x7F));
+                if (pendingLength - pos < tag) break;
+                pos += tag;
+                continue;
+            }
+            int header = (pending[pos] & 0xFF) << 24 | (pending[pos + 1] & 0xFF) << 16
+                    | (pending[pos + 2] & 0xFF) << 8 | (pending[pos + 3] & 0xFF);
+            int frameLength = mp3FrameLength(header);
+            if (frameLength <= 0) {
+                pos++; // resync
+                continue;
+            }
+            if (pendingLength - pos < frameLength) break;
+            if (codec == null) {
+                configure(MediaFormat.createAudioFormat(MediaFormat.MIMETYPE_AUDIO_MPEG,
+                        mp3SampleRate(header), ((header >> 6) & 3) == 3 ? 1 : 2));
+            }
+            int version = (header >> 19) & 3;
+            queue(pending, pos, frameLength,
+                    (version == 3 ? 1152 : 576) * 1000000L / mp3SampleRate(header));
+            pos += frameLength;
+        }
+        return pos;
+    }
+
+    private static int mp3SampleRate(int header) {
+        int version = (header >> 19) & 3; // 3: MPEG1, 2: MPEG2, 0: MPEG2.5
+        int rate = MP3_SAMPLE_RATES[(header >> 10) & 3];
+        return version == 3 ? rate : version == 2 ? rate / 2 : rate / 4;
+    }
+
+    private static int mp3FrameLength(int header) {
+        if ((header & 0xFFE00000) != 0xFFE00000) return 0;
+        int version = (header >> 19) & 3;
+        int layer = (header >> 17) & 3;
+        if (version == 1 || layer != 1) return 0; // layer III only
+        int bitrate = (version == 3 ? MP3_BITRATES_V1 : MP3_BITRATES_V2)[(header >> 12) & 0xF];
+        if (bitrate == 0 || MP3_SAMPLE_RATES[(header >> 10) & 3] == 0) return 0;
+        int padding = (header >> 9) & 1;
+        return (version == 3 ? 144000 : 72000) * bitrate / mp3SampleRate(header) + padding;
+    }
+
+    // Returns the bytes consumed, only whole pages are read
+    private int splitOgg() {
+        int pos = 0;
+        while (pendingLength - pos >= 27) {
+            if (pending[pos] != 'O' || pending[pos + 1] != 'g' || pending[pos + 2] != 'g'
+                    || pending[pos + 3] != 'S') {
+                pos++; // resync
+                continue;
+            }
+            int segments = pending[pos + 26] & 0xFF;
+            int headerLength = 27 + segments;
+            if (pendingLength - pos < headerLength) break;
+            int bodyLength = 0;
+            for (int i = 0; i < segments; i++) bodyLength += pending[pos + 27 + i] & 0xFF;
+            if (pendingLength - pos < headerLength + bodyLength) break;
+            int body = pos + headerLength;
+            for (int i = 0; i < segments; i++) {
+                int lacing = pending[pos + 27 + i] & 0xFF;
+                if (packetLength + lacing <= packet.length) {
+                    System.arraycopy(pending, body, packet, packetLength, lacing);
+                }
+                packetLength += lacing;
+                body += lacing;
+                if (lacing < 255) { // packet complete
+                    if (packetLength <= packet.length) onOpusPacket(packet, packetLength);
+                    else Log.w(TAG, "[DECODE] dropping oversized Ogg packet: " + packetLength);
+                    packetLength = 0;
+                }
+            }
+            pos += headerLength + bodyLength;
+        }
+        return pos;
+    }
+
+    private void onOpusPacket(byte[] data, int length) {
+        int index = oggPackets++;
+        if (index == 0) { // OpusHead
+            int preSkip = (data[10] & 0xFF) | (data[11] & 0xFF) << 8;
+            MediaFormat format = MediaFormat.createAudioFormat(MediaFormat.MIMETYPE_AUDIO_OPUS,
+                    OPUS_SAMPLE_RATE, data[9] & 0xFF);
+            format.setByteBuffer("csd-0", ByteBuffer.wrap(data, 0, length).slice());
+            format.setByteBuffer("csd-1", nanos(preSkip * 1000000000L / OPUS_SAMPLE_RATE));
+            format.setByteBuffer("csd-2", nanos(OPUS_SEEK_PREROLL_NS));
+            configure(format);
+            return;
+        }
+        if (index == 1) return; // OpusTags
+        queue(data, 0, length, opusPacketUs(data[0] & 0xFF, length > 1 ? data[1] & 0xFF : 0));
+    }
+
+    // Packet duration from the TOC byte, RFC 6716 section 3.1
+    private static long opusPacketUs(int toc, int frameCountByte) {
+        int config = toc >> 3;
+        long frameUs;
+        if (config < 12) frameUs = OPUS_SILK_FRAME_US[config & 3];
+        else if (config < 16) frameUs = (config & 1) == 0 ? 10000 : 20000;
+        else frameUs = OPUS_CELT_FRAME_US[config & 3];
+        int code = toc & 3;
+        int frames = code == 0 ? 1 : code == 3 ? frameCountByte & 0x3F : 2;
+        return frameUs * frames;
+    }
+
+    private static ByteBuffer nanos(long value) {
+        ByteBuffer buffer = ByteBuffer.allocate(8).order(ByteOrder.nativeOrder());
+        buffer.putLong(value).flip();
+        return buffer;
+    }
+
+    private void configure(MediaFormat format) {
+        try {
+            codec = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+            codec.configure(format, null, null, 0);
+            codec.start();
+            channels = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+            sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+        } catch (IOException | IllegalStateException | IllegalArgumentException e) {
+            Log.e(TAG, "[DECODE] error creating " + format + " decoder:", e);
+            codec = null;
+        }
+    }
+
+    private void queue(byte[] data, int offset, int length, long durationUs) {
+        if (codec == null) return;
+        int index;
+        while ((index = codec.dequeueInputBuffer(CODEC_TIMEOUT_US)) < 0) {
+            drain(false); // make room
+        }
+        ByteBuffer input = codec.getInputBuffer(index);
+        if (length > input.capacity()) {
+            Log.w(TAG, "[DECODE] packet larger than input buffer: " + length);
+            length = 0;
+        }
+        input.clear();
+        input.put(data, offset, length);
+        codec.queueInputBuffer(index, 0, length, presentationUs, 0);
+        presentationUs += durationUs;
+    }
+
+    private void drain(boolean untilEndOfStream) {
+        if (codec == null) return;
+        long deadlineNs = System.nanoTime() + END_OF_STREAM_TIMEOUT_NS;
+        while (true) {
+            int index = codec.dequeueOutputBuffer(info, untilEndOfStream ? CODEC_TIMEOUT_US : 0);
+            if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                MediaFormat format = codec.getOutputFormat();
+                channels = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+                sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+                continue;
+            }
+            if (index == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                if (!untilEndOfStream) return;
+                if (System.nanoTime() - deadlineNs > 0) {
+                    Log.w(TAG, "[DECODE] no end of stream from the decoder, dropping the rest");
+                    truncated.increment();
+                    return;
+                }
+                continue;
+            }
+            if (index < 0) continue; // output buffers changed
+            ByteBuffer output = codec.getOutputBuffer(index);
+            if (info.size > 0) {
+                output.position(info.offset);
+                output.limit(info.offset + info.size);
+                write(output);
+            }
+            codec.releaseOutputBuffer(index, false);
+            if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) return;
+        }
+    }
+
+    private void write(ByteBuffer pcm) {
+        if (firstPcm) {
+            firstPcm = false;
+            Log.i(TAG, "[DECODE] first PCM after " + (System.nanoTime() - turnStartNs) / 1000000
+                    + "ms and " + compressedBytes + " bytes");
+        }
+        if (channels == 2) pcm = downmix(pcm);
+        int size = pcm.remaining();
+        pcmBytes += size;
+        player.write(pcm, sampleRate);
+    }
+
+    // The player is mono, average both channels of 16 bit interleaved PCM
+    private ByteBuffer downmix(ByteBuffer stereo) {
+        int frames = stereo.remaining() / 4;
+        if (mono.length < frames * 2) mono = new byte[frames * 2];
+        ByteBuffer in = stereo.order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < frames; i++) {
+            int v = (in.getShort() + in.getShort()) >> 1;
+            mono[2 * i] = (byte) v;
+            mono[2 * i + 1] = (byte) (v >> 8);
+        }
+        return ByteBuffer.wrap(mono, 0, frames * 2);
+    }
+}
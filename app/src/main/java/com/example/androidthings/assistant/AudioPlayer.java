@@ -0,0 +1,324 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import android.media.AudioTrack;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.protobuf.ByteString;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+import admobilize.matrix.io.AudioMetrics;
+import admobilize.matrix.io.EchoCanceller;
+
+/**
+ * Plays audio_out on its own thread so the gRPC callbacks never block on the
+ * AudioTrack. PCM is copied into a bounded pool of chunks (the jitter buffer);
+ * each response starts playing once the prebuffer depth is queued or the
+ * response ended, and playback that runs dry before the end is counted as an
+ * underrun and prebuffers again. Writers only block when the buffer is full.
+ * The track is written without blocking so a flush always gets through.
+ */
+class AudioPlayer {
+
+    private static final String TAG = AudioPlayer.class.getSimpleName();
+
+    private static final int CHUNK_BYTES = 2048; // 64ms at 16KHz
+    private static final long TRACK_FULL_WAIT_MS = 5;
+
+    private static class Chunk {
+        final byte[] data = new byte[CHUNK_BYTES];
+        int length;
+        int sampleRate;
+        boolean endOfResponse;
+        long queuedNs;
+
+        long durationUs() {
+            return length * 1000000L / (sampleRate * 2);
+        }
+    }
+
+    private final AudioTrack track;
+    private final long prebufferUs;
+    private final ArrayBlockingQueue<Chunk> free;
+    private final ArrayBlockingQueue<Chunk> filled;
+    private final Object lock = new Object();
+    private final PlaybackThread thread;
+    private volatile EchoCanceller echoCanceller;
+
+    // guarded by lock
+    private long queuedUs;
+    private int queuedEnds;
+    private volatile boolean flushRequested;
+
+    // set by flush() until the interrupted response ends or the next one starts, its late
+    // chunks are dropped
+    private volatile boolean dropping;
+    private volatile boolean playing;
+
+    private int trackRate;
+    private long playedUs;
+    private int responseUnderruns;
+
+    private final AudioMetrics.Counter underruns = AudioMetrics.counter("playback.underruns");
+    private final AudioMetrics.Histogram firstAudioMs = AudioMetrics.histogram("playback.first_audio_ms");
+
+    /**
+     * @param prebufferMs audio queued before a response starts playing
+     * @param bufferMs capacity of the jitter buffer at the track sample rate
+     */
+    AudioPlayer(AudioTrack track, int prebufferMs, int bufferMs) {
+        this.track = track;
+        this.prebufferUs = prebufferMs * 1000L;
+        trackRate = track.getSampleRate();
+        int chunks = Math.max(2, trackRate * 2 * bufferMs / 1000 / CHUNK_BYTES);
+        free = new ArrayBlockingQueue<>(chunks);
+        filled = new ArrayBlockingQueue<>(chunks);
+        for (int i = 0; i < chunks; i++) free.add(new Chunk());
+        thread = new PlaybackThread();
+        thread.start();
+    }
+
+    /**
+     * Queues 16 bit mono PCM, blocking only while the jitter buffer is full.
+     */
+    void write(ByteString pcm, int sampleRate) {
+        if (dropping) return;
+        int size = pcm.size();
+        for (int offset = 0; offset < size; offset += CHUNK_BYTES) {
+            Chunk chunk = take();
+            if (chunk == null) return;
+            chunk.length = Math.min(CHUNK_BYTES, size - offset);
+            pcm.copyTo(chunk.data, offset, 0, chunk.length);
+            queue(chunk, sampleRate, false);
+        }
+    }
+
+    void write(ByteBuffer pcm, int sampleRate) {
+        if (dropping) return;
+        while (pcm.hasRemaining()) {
+            Chunk chunk = take();
+            if (chunk == null) return;
+            chunk.length = Math.min(CHUNK_BYTES, pcm.remaining());
+            pcm.get(chunk.data, 0, chunk.length);
+            queue(chunk, sampleRate, false);
+        }
+    }
+
+    /**
+     * Lets the rest of the current response play even if it is shorter than the prebuffer.
+     */
+    void endOfResponse() {
+        if (dropping) {
+            dropping = false;
+            return;
+        }
+        Chunk chunk = take();
+        if (chunk == null) return;
+        chunk.length = 0;
+        queue(chunk, track.getSampleRate(), true);
+    }
+
+    /**
+     * Accepts audio again after a flush that dropped an interrupted response, for
+     * a new response whose request is about to be sent.
+     */
+    void startResponse() {
+        dropping = false;
+    }
+
+    /**
+     * Silences the track right away and drops everything queued.
+     * @param responseInFlight the interrupted response is still arriving, drop the
+     *                         rest of it until its {@link #endOfResponse()} or the
+     *                         next {@link #startResponse()}
+     */
+    void flush(boolean responseInFlight) {
+        dropping = responseInFlight;
+        track.pause(); // before the request, the player thread resumes the track
+        synchronized (lock) {
+            flushRequested = true;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * @return true while a response is queued or playing
+     */
+    boolean isActive() {
+        if (playing) return true;
+        synchronized (lock) {
+            return queuedUs > 0;
+        }
+    }
+
+    /**
+     * Hands everything the track accepts to the canceller as its echo reference.
+     */
+    void setEchoCanceller(EchoCanceller echoCanceller) {
+        this.echoCanceller = echoCanceller;
+    }
+
+    void release() {
+        thread.quit();
+    }
+
+    long getUnderruns() {
+        return underruns.get();
+    }
+
+    private Chunk take() {
+        try {
+            return free.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    private void queue(Chunk chunk, int sampleRate, boolean end) {
+        chunk.sampleRate = sampleRate;
+        chunk.endOfResponse = end;
+        chunk.queuedNs = System.nanoTime();
+        synchronized (lock) {
+            filled.add(chunk);
+            queuedUs += chunk.durationUs();
+            if (end) queuedEnds++;
+            lock.notifyAll();
+        }
+    }
+
+    private class PlaybackThread extends Thread {
+
+        private volatile boolean running = true;
+
+        PlaybackThread() {
+            super("audioPlayerThread");
+        }
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+            boolean prebuffering = true;
+            while (running) {
+                Chunk chunk;
+                synchronized (lock) {
+                    try {
+                        while (running && !flushRequested && (prebuffering
+                                ? queuedUs < prebufferUs && queuedEnds == 0
+                                : filled.isEmpty() && queuedEnds == 0)) {
+                            if (!prebuffering) { // ran dry in the middle of a response
+                                underruns.increment();
+                                responseUnderruns++;
+                                prebuffering = true;
+                                continue;
+                            }
+                            lock.wait();
+                        }
+                    } catch (InterruptedException e) {
+                        continue;
+                    }
+                    if (!running) break;
+                    if (flushRequested) {
+                        flushRequested = false;
+                        flushQueued();
+                        prebuffering = true;
+                        continue;
+                    }
+                    chunk = filled.poll();
+                    if (chunk == null) continue;
+                    queuedUs -= chunk.durationUs();
+                    if (chunk.endOfResponse) queuedEnds--;
+                }
+                prebuffering = false;
+                if (chunk.endOfResponse) {
+                    endResponse();
+                    prebuffering = true;
+                } else {
+                    play(chunk);
+                }
+                free.add(chunk);
+            }
+        }
+
+        void quit() {
+            running = false;
+            interrupt();
+        }
+    }
+
+    private void play(Chunk chunk) {
+        if (chunk.sampleRate != trackRate) {
+            if (track.setPlaybackRate(chunk.sampleRate) == AudioTrack.SUCCESS) {
+                trackRate = chunk.sampleRate;
+            } else {
+                Log.w(TAG, "[PLAYER] cannot play audio at " + chunk.sampleRate + "Hz");
+            }
+        }
+        if (playedUs == 0) { // time the first chunk spent in the jitter buffer
+            firstAudioMs.record((System.nanoTime() - chunk.queuedNs) / 1000000);
+        }
+        playing = true;
+        // only audio at the track rate lines up with the mic stream
+        EchoCanceller aec = chunk.sampleRate == track.getSampleRate() ? echoCanceller : null;
+        int offset = 0;
+        while (offset < chunk.length && !flushRequested) {
+            int result = track.write(chunk.data, offset, chunk.length - offset,
+                    AudioTrack.WRITE_NON_BLOCKING);
+            if (result < 0) {
+                Log.e(TAG, "[PLAYER] error writing audio: " + result);
+                break;
+            }
+            if (result == 0) SystemClock.sleep(TRACK_FULL_WAIT_MS);
+            else if (aec != null) aec.writeReference(chunk.data, offset, result);
+            offset += result;
+        }
+        playedUs += chunk.durationUs();
+    }
+
+    private void endResponse() {
+        if (playedUs > 0) {
+            Log.i(TAG, "[PLAYER] response played: " + playedUs / 1000 + "ms, underruns: "
+                    + responseUnderruns + ", total underruns: " + underruns.get());
+        }
+        if (trackRate != track.getSampleRate()) {
+            track.setPlaybackRate(track.getSampleRate());
+            trackRate = track.getSampleRate();
+        }
+        playedUs = 0;
+        responseUnderruns = 0;
+        playing = false;
+    }
+
+    // Called with the lock held
+    private void flushQueued() {
+        Chunk chunk;
+        while ((chunk = filled.poll()) != null) free.add(chunk);
+        queuedUs = 0;
+        queuedEnds = 0;
+        track.pause();
+        track.flush();
+        track.play();
+        EchoCanceller aec = echoCanceller;
+        if (aec != null) aec.clearReference();
+        endResponse();
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import admobilize.matrix.io.AudioMetrics;
+import ai.kitt.snowboy.SnowboyDetect;
+
+/**
+ * Native Snowboy detectors with an explicit owner. {@link SnowboyDetect} only
+ * frees its native memory in delete() or, much later, in finalize(); a
+ * {@link Handle} is closed instead, which hands the detector back to the pool
+ * for the next user of the same resource and models, or deletes it when the
+ * pool already keeps enough of them. Every acquire returns a new handle, so a
+ * handle closed late never touches the detector once someone else holds it.
+ * Native instances and open handles are both counted, a leak shows as a count
+ * that does not come back down.
+ */
+class DetectorPool {
+
+    private static final AtomicInteger sLiveDetectors = new AtomicInteger();
+    private static final AtomicInteger sOpenHandles = new AtomicInteger();
+    private static final AudioMetrics.Counter sCreated = AudioMetrics.counter("snowboy.detectors_created");
+
+    /**
+     * One use of a native detector, not to be used once closed. Closing it more
+     * than once is harmless.
+     */
+    static class Handle implements AutoCloseable {
+
+        private final String key;
+        private final DetectorPool pool;
+        private final SnowboyDetect detector;
+        private boolean closed;
+
+        private Handle(String key, DetectorPool pool, SnowboyDetect detector) {
+            this.key = key;
+            this.pool = pool;
+            this.detector = detector;
+            sOpenHandles.incrementAndGet();
+        }
+
+        synchronized SnowboyDetect get() {
+            if (closed) throw new IllegalStateException("detector already closed");
+            return detector;
+        }
+
+        @Override
+        public void close() {
+            synchronized (this) {
+                if (closed) return;
+                closed = true;
+            }
+            sOpenHandles.decrementAndGet();
+            if (pool == null || !pool.recycle(key, detector)) delete(detector);
+        }
+    }
+
+    private final int maxIdlePerKey;
+    private final Map<String, ArrayDeque<SnowboyDetect>> idle = new HashMap<>();
+
+    /**
+     * @param maxIdlePerKey closed detectors kept for each resource and model set
+     */
+    DetectorPool(int maxIdlePerKey) {
+        this.maxIdlePerKey = maxIdlePerKey;
+    }
+
+    /**
+     * A detector for the models, reset and reused when one was closed before.
+     */
+    Handle acquire(String commonRes, String models) {
+        String key = key(commonRes, models);
+        SnowboyDetect detector;
+        synchronized (this) {
+            ArrayDeque<SnowboyDetect> detectors = idle.get(key);
+            detector = detectors != null ? detectors.poll() : null;
+        }
+        if (detector == null) {
+            detector = create(commonRes, models);
+        } else {
+            detector.Reset();
+        }
+        return new Handle(key, this, detector);
+    }
+
+    /**
+     * A detector that is deleted when closed, for short lived uses.
+     */
+    static Handle open(String commonRes, String models) {
+        return new Handle(key(commonRes, models), null, create(commonRes, models));
+    }
+
+    /**
+     * Deletes the idle detectors.
+     */
+    void clear() {
+        ArrayDeque<SnowboyDetect> all = new ArrayDeque<>();
+        synchronized (this) {
+            for (ArrayDeque<SnowboyDetect> detectors : idle.values()) all.addAll(detectors);
+            idle.clear();
+        }
+        for (SnowboyDetect detector : all) delete(detector);
+    }
+
+    synchronized int idleDetectors() {
+        int count = 0;
+        for (ArrayDeque<SnowboyDetect> detectors : idle.values()) count += detectors.size();
+        return count;
+    }
+
+    /**
+     * @return native detectors created and not deleted yet, idle ones included
+     */
+    static int liveDetectors() {
+        return sLiveDetectors.get();
+    }
+
+    /**
+     * @return handles acquired or opened and not closed yet
+     */
+    static int openHandles() {
+        return sOpenHandles.get();
+    }
+
+    private synchronized boolean recycle(String key, SnowboyDetect detector) {
+        ArrayDeque<SnowboyDetect> detectors = idle.get(key);
+        if (detectors == null) {
+            detectors = new ArrayDeque<>();
+            idle.put(key, detectors);
+        }
+        if (detectors.size() >= maxIdlePerKey) return false;
+        detectors.add(detector);
+        return true;
+    }
+
+    private static SnowboyDetect create(String commonRes, String models) {
+        SnowboyDetect detector = new SnowboyDetect(commonRes, models);
+        sLiveDetectors.incrementAndGet();
+        sCreated.increment();
+        return detector;
+    }
+
+    private static void delete(SnowboyDetect detector) {
+        detector.delete();
+        sLiveDetectors.decrementAndGet();
+    }
+
+    private static String key(String commonRes, String models) {
+        return commonRes + '|' + models;
+    }
+}
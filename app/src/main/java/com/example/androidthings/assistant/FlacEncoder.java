@@ -0,0 +1,354 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+/**
+ * Streaming FLAC encoder for mono 16 bit PCM. Samples are buffered until a full
+ * block is available, every block becomes one frame using the best fixed
+ * predictor (order 0 to 4) and partitioned Rice coding. The stream header is
+ * emitted before the first frame of every stream. Nothing is allocated after
+ * construction.
+ */
+class FlacEncoder {
+
+    private static final int MAX_FIXED_ORDER = 4;
+    private static final int MAX_PARTITION_ORDER = 4;
+    private static final int MAX_RICE_PARAM = 14;
+    private static final int STREAM_HEADER_BYTES = 4 + 4 + 34;
+    private static final int FRAME_OVERHEAD_BYTES = 32;
+
+    private static final int[] CRC8 = new int[256];
+    private static final int[] CRC16 = new int[256];
+    static {
+        for (int i = 0; i < 256; i++) {
+            int c8 = i;
+            int c16 = i << 8;
+            for (int b = 0; b < 8; b++) {
+                c8 = (c8 & 0x80) != 0 ? (c8 << 1) ^ 0x07 : c8 << 1;
+                c16 = (c16 & 0x8000) != 0 ? (c16 << 1) ^ 0x8005 : c16 << 1;
+            }
+            CRC8[i] = c8 & 0xFF;
+            CRC16[i] = c16 & 0xFFFF;
+        }
+    }
+
+    private final int sampleRate;
+    private final int blockSize;
+    private final int[] block;
+    private final int[] residual;
+    private final int[] riceParams = new int[1 << MAX_PARTITION_ORDER];
+    private final long[] orderSums = new long[MAX_FIXED_ORDER + 1];
+    private final BitWriter bits = new BitWriter();
+    private int buffered;
+    private int frameNumber;
+    private boolean headerWritten;
+
+    FlacEncoder(int sampleRate, int blockSize) {
+        this.sampleRate = sampleRate;
+        this.blockSize = blockSize;
+        block = new int[blockSize];
+        residual = new int[blockSize];
+    }
+
+    /**
+     * @return worst case output size of encoding pcmBytes, header and flush included
+     */
+    int maxEncodedSize(int pcmBytes) {
+        int frames = pcmBytes / 2 / blockSize + 2;
+        return STREAM_HEADER_BYTES + frames * (blockSize * 2 + FRAME_OVERHEAD_BYTES);
+    }
+
+    /**
+     * Starts a new stream, buffered samples are dropped.
+     */
+    void reset() {
+        buffered = 0;
+        frameNumber = 0;
+        headerWritten = false;
+    }
+
+    /**
+     * Encodes little endian LINEAR16 samples, emitting a frame for every full block.
+     * @return bytes written to out, 0 while the block is still filling up
+     */
+    int encode(byte[] pcm, int offset, int length, byte[] out, int outOffset) {
+        bits.reset(out, outOffset);
+        if (!headerWritten) writeStreamHeader();
+        int end = offset + (length & ~1);
+        for (int i = offset; i < end; i += 2) {
+            block[buffered++] = (short) ((pcm[i] & 0xFF) | (pcm[i + 1] << 8));
+            if (buffered == blockSize) {
+                writeFrame(buffered);
+                buffered = 0;
+            }
+        }
+        return bits.position() - outOffset;
+    }
+
+    /**
+     * Emits the partial block left over at the end of the stream.
+     * @return bytes written to out
+     */
+    int flush(byte[] out, int outOffset) {
+        bits.reset(out, outOffset);
+        if (!headerWritten) writeStreamHeader();
+        if (buffered > 0) {
+            writeFrame(buffered);
+            buffered = 0;
+        }
+        return bits.position() - outOffset;
+    }
+
+    private void writeStreamHeader() {
+        bits.write(0x664C6143, 32);        // "fLaC"
+        bits.write(0x80, 8);               // last metadata block, STREAMINFO
+        bits.write(34, 24);
+        bits.write(blockSize, 16);         // min block size
+        bits.write(blockSize, 16);         // max block size
+        bits.write(0, 24);                 // min frame size, unknown
+        bits.write(0, 24);                 // max frame size, unknown
+        bits.write(sampleRate, 20);
+        bits.write(0, 3);                  // channels - 1
+        bits.write(15, 5);                 // bits per sample - 1
+        bits.write(0, 4);                  // total samples, unknown (36 bits)
+        bits.write(0, 32);
+        for (int i = 0; i < 4; i++) bits.write(0, 32); // MD5, not computed
+        headerWritten = true;
+    }
+
+    private void writeFrame(int count) {
+        int start = bits.position();
+        int sizeCode = blockSizeCode(count);
+        bits.write(0xFFF8, 16);            // sync, fixed block size
+        bits.write(sizeCode, 4);
+        bits.write(sampleRateCode(), 4);
+        bits.write(0, 4);                  // mono
+        bits.write(4, 3);                  // 16 bits per sample
+        bits.write(0, 1);
+        writeUtf8(frameNumber++);
+        if (sizeCode == 7) bits.write(count - 1, 16);
+        bits.write(crc8(bits.buffer(), start, bits.position()), 8);
+        writeSubframe(count);
+        bits.alignToByte();
+        bits.write(crc16(bits.buffer(), start, bits.position()), 16);
+    }
+
+    private int blockSizeCode(int count) {
+        for (int code = 8; code <= 15; code++) {
+            if (count == 256 << (code - 8)) return code;
+        }
+        return 7; // 16 bit size after the frame number
+    }
+
+    private int sampleRateCode() {
+        switch (sampleRate) {
+            case 8000: return 4;
+            case 16000: return 5;
+            case 22050: return 6;
+            case 24000: return 7;
+            case 32000: return 8;
+            case 44100: return 9;
+            case 48000: return 10;
+            default: return 0; // from STREAMINFO
+        }
+    }
+
+    private void writeSubframe(int count) {
+        boolean constant = true;
+        for (int i = 1; i < count && constant; i++) constant = block[i] == block[0];
+        if (constant) {
+            bits.write(0, 8);
+            bits.write(block[0], 16);
+            return;
+        }
+        int order = bestFixedOrder(count);
+        computeResidual(order, count);
+        int partitionOrder = bestPartitionOrder(order, count);
+        long riceBits = 0;
+        int partitions = 1 << partitionOrder;
+        for (int p = 0; p < partitions; p++) riceBits += 4 + partitionBits(order, count, partitionOrder, p, riceParams[p]);
+        if (order * 16 + 6 + riceBits >= count * 16L) {
+            bits.write(1 << 1, 8);         // verbatim
+            for (int i = 0; i < count; i++) bits.write(block[i], 16);
+            return;
+        }
+        bits.write((8 | order) << 1, 8);   // fixed predictor
+        for (int i = 0; i < order; i++) bits.write(block[i], 16);
+        bits.write(0, 2);                  // Rice, 4 bit parameters
+        bits.write(partitionOrder, 4);
+        for (int p = 0; p < partitions; p++) {
+            int k = riceParams[p];
+            bits.write(k, 4);
+            int from = p == 0 ? order : p * (count >> partitionOrder);
+            int to = (p + 1) * (count >> partitionOrder);
+            for (int i = from; i < to; i++) bits.writeRice(residual[i], k);
+        }
+    }
+
+    // Order with the smallest sum of absolute residuals
+    private int bestFixedOrder(int count) {
+        long[] sums = orderSums;
+        for (int o = 0; o <= MAX_FIXED_ORDER; o++) sums[o] = 0;
+        for (int i = MAX_FIXED_ORDER; i < count; i++) {
+            int e0 = block[i];
+            int e1 = e0 - block[i - 1];
+            int e2 = e1 - (block[i - 1] - block[i - 2]);
+            int e3 = e2 - (block[i - 1] - 2 * block[i - 2] + block[i - 3]);
+            int e4 = e3 - (block[i - 1] - 3 * block[i - 2] + 3 * block[i - 3] - block[i - 4]);
+            sums[0] += Math.abs(e0);
+            sums[1] += Math.abs(e1);
+            sums[2] += Math.abs(e2);
+            sums[3] += Math.abs(e3);
+            sums[4] += Math.abs(e4);
+        }
+        int best = 0;
+        int maxOrder = Math.min(MAX_FIXED_ORDER, count - 1);
+        for (int o = 1; o <= maxOrder; o++) if (sums[o] < sums[best]) best = o;
+        return best;
+    }
+
+    private void computeResidual(int order, int count) {
+        int[] s = block;
+        for (int i = order; i < count; i++) {
+            switch (order) {
+                case 0: residual[i] = s[i]; break;
+                case 1: residual[i] = s[i] - s[i - 1]; break;
+                case 2: residual[i] = s[i] - 2 * s[i - 1] + s[i - 2]; break;
+                case 3: residual[i] = s[i] - 3 * s[i - 1] + 3 * s[i - 2] - s[i - 3]; break;
+                default: residual[i] = s[i] - 4 * s[i - 1] + 6 * s[i - 2] - 4 * s[i - 3] + s[i - 4]; break;
+            }
+        }
+    }
+
+    // Leaves the Rice parameters of the chosen order in riceParams
+    private int bestPartitionOrder(int order, int count) {
+        int best = 0;
+        long bestBits = Long.MAX_VALUE;
+        for (int po = 0; po <= MAX_PARTITION_ORDER; po++) {
+            if ((count & ((1 << po) - 1)) != 0 || (count >> po) <= order) break;
+            long total = 0;
+            for (int p = 0; p < (1 << po); p++) {
+                int k = bestRiceParam(order, count, po, p);
+                total += 4 + partitionBits(order, count, po, p, k);
+            }
+            if (total < bestBits) {
+                bestBits = total;
+                best = po;
+            }
+        }
+        for (int p = 0; p < (1 << best); p++) riceParams[p] = bestRiceParam(order, count, best, p);
+        return best;
+    }
+
+    private int bestRiceParam(int order, int count, int partitionOrder, int p) {
+        int from = p == 0 ? order : p * (count >> partitionOrder);
+        int to = (p + 1) * (count >> partitionOrder);
+        long sum = 0;
+        for (int i = from; i < to; i++) sum += zigzag(residual[i]);
+        int n = to - from;
+        int k = 0;
+        while (k < MAX_RICE_PARAM && ((long) n << (k + 1)) < sum) k++;
+        return k;
+    }
+
+    private long partitionBits(int order, int count, int partitionOrder, int p, int k) {
+        int from = p == 0 ? order : p * (count >> partitionOrder);
+        int to = (p + 1) * (count >> partitionOrder);
+        long total = (long) (to - from) * (k + 1);
+        for (int i = from; i < to; i++) total += zigzag(residual[i]) >>> k;
+        return total;
+    }
+
+    private static int zigzag(int v) {
+        return (v << 1) ^ (v >> 31);
+    }
+
+    private void writeUtf8(int v) {
+        if (v < 0x80) {
+            bits.write(v, 8);
+            return;
+        }
+        int extra = v < 0x800 ? 1 : v < 0x10000 ? 2 : v < 0x200000 ? 3 : v < 0x4000000 ? 4 : 5;
+        int lead = (0xFF00 >> (extra + 1)) & 0xFF;
+        bits.write(lead | (v >>> (6 * extra)), 8);
+        for (int i = extra - 1; i >= 0; i--) bits.write(0x80 | ((v >>> (6 * i)) & 0x3F), 8);
+    }
+
+    private static int crc8(byte[] data, int from, int to) {
+        int crc = 0;
+        for (int i = from; i < to; i++) crc = CRC8[(crc ^ data[i]) & 0xFF];
+        return crc;
+    }
+
+    private static int crc16(byte[] data, int from, int to) {
+        int crc = 0;
+        for (int i = from; i < to; i++) crc = ((crc << 8) ^ CRC16[((crc >> 8) ^ data[i]) & 0xFF]) & 0xFFFF;
+        return crc;
+    }
+
+    /**
+     * MSB first bit packer over a caller owned byte array.
+     */
+    private static class BitWriter {
+        private byte[] buf;
+        private int pos;
+        private long acc;
+        private int accBits;
+
+        void reset(byte[] out, int offset) {
+            buf = out;
+            pos = offset;
+            acc = 0;
+            accBits = 0;
+        }
+
+        byte[] buffer() {
+            return buf;
+        }
+
+        /**
+         * @return next byte to be written, only meaningful when byte aligned
+         */
+        int position() {
+            return pos;
+        }
+
+        void write(int value, int count) {
+            acc = (acc << count) | (value & ((1L << count) - 1));
+            accBits += count;
+            while (accBits >= 8) {
+                accBits -= 8;
+                buf[pos++] = (byte) (acc >>> accBits);
+            }
+        }
+
+        void writeRice(int value, int k) {
+            int u = zigzag(value);
+            int q = u >>> k;
+            while (q >= 32) {
+                write(0, 32);
+                q -= 32;
+            }
+            write(1, q + 1);               // q zeros and the stop bit
+            if (k > 0) write(u, k);
+        }
+
+        void alignToByte() {
+            if (accBits > 0) write(0, 8 - accBits);
+        }
+    }
+}
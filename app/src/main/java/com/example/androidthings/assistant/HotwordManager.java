@@ -0,0 +1,129 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import ai.kitt.snowboy.SnowboyDetect;
+
+/**
+ * Several hotword models (universal .umdl and personal .pmdl) run by a single
+ * {@link SnowboyDetect}: Snowboy takes the models as a comma separated list and
+ * shares the audio front end and feature extraction between them, so each extra
+ * hotword only adds its own network. The detection result is the 1-based index
+ * of the hotword, across all models in the order they were added, and is
+ * dispatched to the handler registered with its model.
+ */
+class HotwordManager {
+
+    private static final String TAG = HotwordManager.class.getSimpleName();
+
+    /**
+     * Called on the detection thread.
+     */
+    interface Handler {
+        void onHotword(String model, long detectedNs);
+    }
+
+    private final String commonRes;
+    private final List<String> models = new ArrayList<>();
+    private final List<Handler> modelHandlers = new ArrayList<>();
+
+    // one entry per hotword, a model may hold more than one
+    private String[] hotwordModels = new String[0];
+    private Handler[] hotwordHandlers = new Handler[0];
+
+    HotwordManager(String commonRes) {
+        this.commonRes = commonRes;
+    }
+
+    /**
+     * @param model path of a .umdl or .pmdl file, applies to the next {@link #create(DetectorPool)}
+     */
+    void add(String model, Handler handler) {
+        models.add(model);
+        modelHandlers.add(handler);
+    }
+
+    /**
+     * Adds every model of a comma separated list of file names in the workspace.
+     */
+    void addAll(String workspace, String names, Handler handler) {
+        for (String name : TextUtils.split(names, ",")) {
+            name = name.trim();
+            if (!name.isEmpty()) add(new File(workspace, name).getPath(), handler);
+        }
+    }
+
+    String getModels() {
+        return TextUtils.join(",", models);
+    }
+
+    /**
+     * Loads all models into a detector of the pool and maps its hotwords to their
+     * handlers. The caller closes the handle.
+     */
+    DetectorPool.Handle create(DetectorPool pool) {
+        DetectorPool.Handle handle = pool.acquire(commonRes, getModels());
+        int hotwords = handle.get().NumHotwords();
+        String[] names = new String[hotwords];
+        Handler[] handlers = new Handler[hotwords];
+        if (hotwords == models.size()) {
+            for (int i = 0; i < hotwords; i++) {
+                names[i] = models.get(i);
+                handlers[i] = modelHandlers.get(i);
+            }
+        } else { // some model holds several hotwords, count them one model at a time
+            int index = 0;
+            for (int m = 0; m < models.size(); m++) {
+                int count;
+                try (DetectorPool.Handle single = DetectorPool.open(commonRes, models.get(m))) {
+                    count = single.get().NumHotwords();
+                }
+                for (int i = 0; i < count && index < hotwords; i++, index++) {
+                    names[index] = models.get(m);
+                    handlers[index] = modelHandlers.get(m);
+                }
+            }
+        }
+        hotwordModels = names;
+        hotwordHandlers = handlers;
+        Log.i(TAG, "[SNOWBOY] " + hotwords + " hotwords from " + models.size() + " models: "
+                + getModels());
+        return handle;
+    }
+
+    /**
+     * @param result a positive result of {@link SnowboyDetect#RunDetection}
+     * @return false when no handler is registered for the hotword
+     */
+    boolean dispatch(int result, long detectedNs) {
+        int index = result - 1;
+        if (index < 0 || index >= hotwordHandlers.length) {
+            Log.w(TAG, "[SNOWBOY] no handler for hotword " + result);
+            return false;
+        }
+        Log.i(TAG, "[SNOWBOY] hotword " + result + " detected: " + new File(hotwordModels[index]).getName());
+        hotwordHandlers[index].onHotword(hotwordModels[index], detectedNs);
+        return true;
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import android.os.FileObserver;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicReference;
+
+import ai.kitt.snowboy.SnowboyDetect;
+
+/**
+ * Owns the hotword detector and replaces it while capture keeps running. A new
+ * model set is loaded into its own {@link SnowboyDetect} on a background thread,
+ * then picked up by the detection thread between two blocks with {@link #swap()},
+ * which closes the previous one right there. The detection thread is the only
+ * one that ever runs or closes the active detector. Detectors come from a
+ * {@link DetectorPool}, so going back to a model set reuses its native instance.
+ *
+ * A properties file in the workspace can be watched so that writing it (models
+ * copied next to it first) changes the hotwords without a reinstall.
+ */
+class ModelRegistry {
+
+    private static final String TAG = ModelRegistry.class.getSimpleName();
+
+    private static final int WATCH_EVENTS = FileObserver.CLOSE_WRITE | FileObserver.MOVED_TO;
+
+    interface ConfigListener {
+        /**
+         * Called on the loader thread with the new content of the watched file.
+         */
+        void onConfigChanged(Properties config);
+    }
+
+    private static class Loaded {
+        final HotwordManager hotwords;
+        final DetectorPool.Handle detector;
+
+        Loaded(HotwordManager hotwords, DetectorPool.Handle detector) {
+            this.hotwords = hotwords;
+            this.detector = detector;
+        }
+    }
+
+    private final String workspace;
+    private final DetectorPool pool;
+    private final HandlerThread thread;
+    private final Handler handler;
+    private final AtomicReference<Loaded> pending = new AtomicReference<>();
+    private FileObserver observer;
+
+    // detection thread only
+    private Loaded active;
+
+    ModelRegistry(String workspace, DetectorPool pool) {
+        this.workspace = workspace;
+        this.pool = pool;
+        thread = new HandlerThread("modelLoaderThread");
+        thread.start();
+        handler = new Handler(thread.getLooper());
+    }
+
+    /**
+     * Loads the detector on the calling thread and makes it active, for the first start.
+     */
+    SnowboyDetect install(HotwordManager hotwords) {
+        Loaded previous = active;
+        active = new Loaded(hotwords, hotwords.create(pool));
+        if (previous != null) previous.detector.close();
+        return active.detector.get();
+    }
+
+    /**
+     * Loads the models of hotwords in the background, {@link #swap()} makes them active.
+     */
+    void load(final HotwordManager hotwords) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                long start = SystemClock.elapsedRealtime();
+                DetectorPool.Handle detector;
+                try {
+                    detector = hotwords.create(pool);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "[SNOWBOY] cannot load " + hotwords.getModels(), e);
+                    return;
+                }
+                Log.i(TAG, "[SNOWBOY] loaded " + hotwords.getModels() + " in "
+                        + (SystemClock.elapsedRealtime() - start) + "ms");
+                Loaded replaced = pending.getAndSet(new Loaded(hotwords, detector));
+                if (replaced != null) replaced.detector.close(); // never went live
+            }
+        });
+    }
+
+    /**
+     * Detection thread, between blocks.
+     * @return the new detector when one was waiting, null otherwise
+     */
+    SnowboyDetect swap() {
+        Loaded next = pending.getAndSet(null);
+        if (next == null) return null;
+        Loaded previous = active;
+        active = next;
+        if (previous != null) previous.detector.close();
+        Log.i(TAG, "[SNOWBOY] now detecting " + next.hotwords.getModels());
+        return next.detector.get();
+    }
+
+    /**
+     * The hotwords of the active detector, detection thread only.
+     */
+    HotwordManager hotwords() {
+        return active.hotwords;
+    }
+
+    /**
+     * Reads fileName in the workspace now and every time it is rewritten.
+     */
+    void watch(final String fileName, final ConfigListener listener) {
+        final Runnable read = new Runnable() {
+            @Override
+            public void run() {
+                File file = new File(workspace, fileName);
+                if (!file.exists()) return;
+                Properties config = new Properties();
+                try (InputStream in = new FileInputStream(file)) {
+                    config.load(in);
+                } catch (IOException e) {
+                    Log.w(TAG, "[SNOWBOY] cannot read " + file, e);
+                    return;
+                }
+                listener.onConfigChanged(config);
+            }
+        };
+        observer = new FileObserver(workspace, WATCH_EVENTS) {
+            @Override
+            public void onEvent(int event, String path) {
+                if (fileName.equals(path)) handler.post(read);
+            }
+        };
+        observer.startWatching();
+        handler.post(read);
+    }
+
+    /**
+     * Detection thread, once detection stopped for good.
+     */
+    void release() {
+        if (observer != null) observer.stopWatching();
+        if (active != null) active.detector.close();
+        active = null;
+        handler.post(new Runnable() {
+            @Override
+            public void run() { // after any load still queued
+                Loaded next = pending.getAndSet(null);
+                if (next != null) next.detector.close();
+                pool.clear();
+                Log.i(TAG, "[SNOWBOY] released, live detectors: " + DetectorPool.liveDetectors()
+                        + ", open handles: " + DetectorPool.openHandles());
+            }
+        });
+        thread.quitSafely();
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+/**
+ * Rolling window of the most recent PCM samples seen by the hotword detector,
+ * replayed at the start of a conversation so nothing said around the hotword is lost.
+ */
+class PreRollBuffer {
+
+    private final short[] samples;
+    private int writePos;
+    private int size;
+    private int readPos;
+    private int remaining;
+
+    PreRollBuffer(int capacitySamples) {
+        samples = new short[capacitySamples];
+    }
+
+    void write(short[] src, int count) {
+        for (int i = 0; i < count; i++) {
+            samples[writePos] = src[i];
+            writePos = (writePos + 1) % samples.length;
+        }
+        size = Math.min(size + count, samples.length);
+    }
+
+    /**
+     * Starts replaying everything buffered so far, oldest sample first.
+     */
+    void rewind() {
+        remaining = size;
+        readPos = (writePos - size + samples.length) % samples.length;
+    }
+
+    /**
+     * Copies the next replayed samples as little endian LINEAR16.
+     * @return bytes written, 0 once the replay is over
+     */
+    int read(byte[] dst, int offset, int length) {
+        int count = Math.min(remaining, length / 2);
+        for (int i = 0; i < count; i++) {
+            short v = samples[readPos];
+            dst[offset++] = (byte) v;
+            dst[offset++] = (byte) (v >> 8);
+            readPos = (readPos + 1) % samples.length;
+        }
+        remaining -= count;
+        return count * 2;
+    }
+
+    void clear() {
+        size = 0;
+        remaining = 0;
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import android.util.Log;
+
+import java.util.Locale;
+
+import admobilize.matrix.io.AudioMetrics;
+import ai.kitt.snowboy.SnowboyDetect;
+
+/**
+ * Adjusts the hotword detector to the room. The ambient noise floor maps the
+ * sensitivity and the audio gain between their bounds: a quiet room gets more
+ * gain and a more sensitive detector, a loud one less of both so the noise does
+ * not wake the assistant. On top of that, reported false triggers (a turn that
+ * heard no request) and misses (a manual trigger right after unrecognized
+ * speech) nudge the sensitivity down or up. New settings are only applied from
+ * the detection thread, between blocks.
+ */
+class SensitivityController {
+
+    private static final String TAG = SensitivityController.class.getSimpleName();
+
+    private static final float QUIET_DBFS = -65f;
+    private static final float LOUD_DBFS = -35f;
+    private static final float FEEDBACK_STEP = 0.02f;
+    private static final float FEEDBACK_LIMIT = 0.1f;
+    private static final float MIN_SENSITIVITY_CHANGE = 0.02f;
+    private static final float MIN_GAIN_CHANGE = 0.1f;
+    private static final long REPORT_INTERVAL_NS = 60000000000L; // 60s
+
+    private final float minSensitivity;
+    private final float maxSensitivity;
+    private final float minGain;
+    private final float maxGain;
+
+    private float sensitivity;
+    private float gain;
+    private float noiseDbfs = QUIET_DBFS;
+    private float bias;                  // from false trigger and miss feedback
+    private boolean dirty = true;
+    private long reportStartNs;
+
+    private final AudioMetrics.Counter detections = AudioMetrics.counter("hotword.detections");
+    private final AudioMetrics.Counter falseTriggers = AudioMetrics.counter("hotword.false_triggers");
+    private final AudioMetrics.Counter misses = AudioMetrics.counter("hotword.misses");
+
+    SensitivityController(float minSensitivity, float maxSensitivity, float minGain, float maxGain) {
+        this.minSensitivity = minSensitivity;
+        this.maxSensitivity = maxSensitivity;
+        this.minGain = minGain;
+        this.maxGain = maxGain;
+        sensitivity = (minSensitivity + maxSensitivity) / 2;
+        gain = minGain;
+    }
+
+    /**
+     * Detection thread, once per block.
+     * @param noiseFloor mean square of the background, in 16 bit sample units
+     */
+    void update(float noiseFloor) {
+        if (noiseFloor > 0) noiseDbfs = (float) (10 * Math.log10(noiseFloor / (32768f * 32768f)));
+        float quiet = Math.max(0, Math.min(1, (LOUD_DBFS - noiseDbfs) / (LOUD_DBFS - QUIET_DBFS)));
+        float targetSensitivity;
+        float targetGain;
+        synchronized (this) {
+            targetSensitivity = clamp(minSensitivity + quiet * (maxSensitivity - minSensitivity) + bias,
+                    minSensitivity, maxSensitivity);
+            targetGain = minGain + quiet * (maxGain - minGain);
+        }
+        if (Math.abs(targetSensitivity - sensitivity) >= MIN_SENSITIVITY_CHANGE
+                || Math.abs(targetGain - gain) >= MIN_GAIN_CHANGE) {
+            sensitivity = targetSensitivity;
+            gain = targetGain;
+            dirty = true;
+        }
+        long now = System.nanoTime();
+        if (reportStartNs == 0) reportStartNs = now;
+        if (now - reportStartNs >= REPORT_INTERVAL_NS) {
+            reportStartNs = now;
+            Log.i(TAG, "[SENSITIVITY] " + describe() + " detections: " + detections.get()
+                    + " false triggers: " + falseTriggers.get() + " misses: " + misses.get());
+        }
+    }
+
+    /**
+     * Detection thread. Pushes the settings to the detector when they changed.
+     */
+    void apply(SnowboyDetect detector) {
+        if (!dirty) return;
+        dirty = false;
+        String value = String.format(Locale.US, "%.2f", sensitivity);
+        StringBuilder sensitivities = new StringBuilder(value);
+        for (int i = 1; i < detector.NumHotwords(); i++) sensitivities.append(',').append(value);
+        detector.SetSensitivity(sensitivities.toString());
+        detector.SetAudioGain(gain);
+        Log.i(TAG, "[SENSITIVITY] " + describe());
+    }
+
+    /**
+     * The detector was replaced, the next {@link #apply(SnowboyDetect)} sets it up again.
+     */
+    void reset() {
+        dirty = true;
+    }
+
+    void detected() {
+        detections.increment();
+    }
+
+    /**
+     * A hotword turn ended without hearing a request.
+     */
+    synchronized void falseTrigger() {
+        falseTriggers.increment();
+        bias = Math.max(-FEEDBACK_LIMIT, bias - FEEDBACK_STEP);
+    }
+
+    /**
+     * The assistant was started by hand right after speech the detector let through.
+     */
+    synchronized void miss() {
+        misses.increment();
+        bias = Math.min(FEEDBACK_LIMIT, bias + FEEDBACK_STEP);
+    }
+
+    private String describe() {
+        return String.format(Locale.US, "noise: %.0fdBFS sensitivity: %.2f gain: %.1f bias: %+.2f",
+                noiseDbfs, sensitivity, gain, bias);
+    }
+
+    private static float clamp(float v, float min, float max) {
+        return Math.max(min, Math.min(max, v));
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+/**
+ * Cheap voice activity gate in front of the hotword detector. A block opens the
+ * gate when its energy stands out of the tracked noise floor, or when it is a
+ * quieter block with the zero crossing rate of a fricative. The gate stays open
+ * for a hangover after the last voiced block. Blocks seen while closed are kept
+ * as context, to be replayed when the gate opens so the start of the hotword
+ * still reaches the detector. Nothing is allocated after construction.
+ */
+class VadGate {
+
+    private static final float SPEECH_OVER_FLOOR = 4f;     // ~6dB
+    private static final float FRICATIVE_OVER_FLOOR = 2f;
+    private static final float FRICATIVE_MIN_ZCR = 0.3f;
+    private static final float MIN_ENERGY = 100f;          // mean square, ~-50dBFS
+    private static final float FLOOR_RISE = 0.01f;         // per block, falls immediately
+
+    private final short[] context;
+    private final int hangoverSamples;
+    private int contextPos;
+    private int contextSize;
+    private int contextRead;
+
+    private float noiseFloor = -1;
+    private int openSamples;
+    private boolean opened;
+
+    private long blocks;
+    private long passedBlocks;
+
+    VadGate(int sampleRate, int contextMs, int hangoverMs) {
+        context = new short[sampleRate * contextMs / 1000];
+        hangoverSamples = sampleRate * hangoverMs / 1000;
+    }
+
+    /**
+     * @return true when the block should go to the detector, see {@link #opened()}
+     */
+    boolean process(short[] block, int count) {
+        blocks++;
+        float energy = 0;
+        int crossings = 0;
+        for (int i = 0; i < count; i++) {
+            energy += (float) block[i] * block[i];
+            if (i > 0 && (block[i] ^ block[i - 1]) < 0) crossings++;
+        }
+        energy /= Math.max(count, 1);
+        float zcr = (float) crossings / Math.max(count - 1, 1);
+        if (noiseFloor < 0 || energy < noiseFloor) noiseFloor = Math.max(energy, 1);
+        else noiseFloor += FLOOR_RISE * (energy - noiseFloor);
+
+        boolean voiced = energy > MIN_ENERGY && (energy > noiseFloor * SPEECH_OVER_FLOOR
+                || (energy > noiseFloor * FRICATIVE_OVER_FLOOR && zcr > FRICATIVE_MIN_ZCR));
+        boolean wasOpen = openSamples > 0;
+        if (voiced) openSamples = hangoverSamples;
+        else openSamples = Math.max(0, openSamples - count);
+        opened = !wasOpen && openSamples > 0;
+        if (opened) contextRead = 0;
+        else if (wasOpen) clearContext(); // only valid right after the opening block
+        if (openSamples > 0 || wasOpen) {
+            passedBlocks++;
+            return true;
+        }
+        for (int i = 0; i < count; i++) {
+            context[contextPos] = block[i];
+            contextPos = (contextPos + 1) % context.length;
+        }
+        contextSize = Math.min(contextSize + count, context.length);
+        return false;
+    }
+
+    /**
+     * @return true when the last processed block opened the gate, its context is
+     * ready in {@link #readContext(short[])}
+     */
+    boolean opened() {
+        return opened;
+    }
+
+    /**
+     * Copies the next samples of the context that preceded the opening block, oldest first.
+     * @return samples copied, 0 once the whole context was read
+     */
+    int readContext(short[] dst) {
+        int count = Math.min(dst.length, contextSize - contextRead);
+        int start = (contextPos - contextSize + contextRead + context.length) % context.length;
+        for (int i = 0; i < count; i++) dst[i] = context[(start + i) % context.length];
+        contextRead += count;
+        if (contextRead == contextSize) contextSize = 0;
+        return count;
+    }
+
+    /**
+     * Drops the rest of the context, for a reader that stops before the end.
+     */
+    void clearContext() {
+        contextSize = 0;
+        contextRead = 0;
+    }
+
+    float getNoiseFloor() {
+        return noiseFloor;
+    }
+
+    /**
+     * @return fraction of the blocks passed to the detector since the last call
+     */
+    float takeDutyCycle() {
+        float duty = blocks == 0 ? 1 : (float) passedBlocks / blocks;
+        blocks = 0;
+        passedBlocks = 0;
+        return duty;
+    }
+}
@@ -0,0 +1,129 @@
+package admobilize.matrix.io;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Process wide counters and histograms for the audio path.
+ *
+ * Metrics are registered once by name and then updated without locks or
+ * allocation. Every metric is meant to have a single writer thread; readers
+ * may see slightly stale values, which is fine for periodic snapshots.
+ * Values are cumulative since start, compare two snapshots for rates.
+ */
+public class AudioMetrics {
+
+    private static final List<Counter> counters = new ArrayList<>();
+    private static final List<Histogram> histograms = new ArrayList<>();
+
+    private AudioMetrics() {
+    }
+
+    public static class Counter {
+        private final String name;
+        private volatile long value;
+
+        private Counter(String name) {
+            this.name = name;
+        }
+
+        public void add(long n) {
+            value += n;
+        }
+
+        public void increment() {
+            value++;
+        }
+
+        public long get() {
+            return value;
+        }
+    }
+
+    /**
+     * Power of two buckets: bucket b holds values in [2^(b-1), 2^b).
+     */
+    public static class Histogram {
+        private static final int BUCKETS = 32;
+
+        private final String name;
+        private final long[] buckets = new long[BUCKETS];
+        private volatile long count;
+        private long sum;
+        private long max;
+
+        private Histogram(String name) {
+            this.name = name;
+        }
+
+        public void record(long value) {
+            int b = value <= 0 ? 0 : Math.min(64 - Long.numberOfLeadingZeros(value), BUCKETS - 1);
+            buckets[b]++;
+            sum += value;
+            if (value > max) max = value;
+            count++;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        public long getMean() {
+            long n = count;
+            return n == 0 ? 0 : sum / n;
+        }
+
+        /**
+         * @return upper bound of the bucket holding the given percentile
+         */
+        public long getPercentile(float percentile) {
+            long n = count;
+            if (n == 0) return 0;
+            long target = (long) Math.ceil(n * percentile / 100f);
+            long seen = 0;
+            for (int b = 0; b < BUCKETS; b++) {
+                seen += buckets[b];
+                if (seen >= target) return b == 0 ? 0 : 1L << b;
+            }
+            return max;
+        }
+    }
+
+    public static synchronized Counter counter(String name) {
+        for (Counter c : counters) if (c.name.equals(name)) return c;
+        Counter c = new Counter(name);
+        counters.add(c);
+        return c;
+    }
+
+    public static synchronized Histogram histogram(String name) {
+        for (Histogram h : histograms) if (h.name.equals(name)) return h;
+        Histogram h = new Histogram(name);
+        histograms.add(h);
+        return h;
+    }
+
+    /**
+     * @return every metric as a single line JSON object, ready to be logged or uploaded
+     */
+    public static synchronized String snapshot() {
+        StringBuilder sb = new StringBuilder("{");
+        for (Counter c : counters) {
+            if (sb.length() > 1) sb.append(',');
+            sb.append('"').append(c.name).append("\":").append(c.get());
+        }
+        for (Histogram h : histograms) {
+            if (sb.length() > 1) sb.append(',');
+            sb.append('"').append(h.name).append("\":{\"n\":").append(h.getCount())
+                    .append(",\"mean\":").append(h.getMean())
+                    .append(",\"p50\":").append(h.getPercentile(50))
+                    .append(",\"p99\":").append(h.getPercentile(99))
+                    .append(",\"max\":").append(h.getMax()).append('}');
+        }
+        return sb.append('}').toString();
+    }
+}
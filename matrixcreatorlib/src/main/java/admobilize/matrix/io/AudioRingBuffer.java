@@ -0,0 +1,130 @@
+package admobilize.matrix.io;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fixed capacity single-producer/single-consumer ring of interleaved 16 bit frames.
+ *
+ * The producer (mic data callback) only moves the write position and the consumer
+ * (audio input driver) only moves the read position, so no lock is taken and no
+ * object is allocated after construction. When the consumer stalls the incoming
+ * frames are dropped and accounted as overrun instead of growing the buffer.
+ */
+public class AudioRingBuffer {
+
+    private final short[] buffer;
+    private final int channels;
+    private final int capacity;  // in frames, power of two
+    private final int mask;
+
+    private final AtomicLong writePos = new AtomicLong();
+    private final AtomicLong readPos = new AtomicLong();
+
+    // each counter is only written by one side
+    private volatile long overrunFrames;
+    private volatile long underrunFrames;
+
+    public AudioRingBuffer(int channels, int capacityFrames) {
+        if (channels <= 0) throw new IllegalArgumentException("channels: " + channels);
+        if (capacityFrames <= 0 || (capacityFrames & (capacityFrames - 1)) != 0) {
+            throw new IllegalArgumentException("capacity must be a power of two: " + capacityFrames);
+        }
+        this.channels = channels;
+        this.capacity = capacityFrames;
+        this.mask = capacityFrames - 1;
+        this.buffer = new short[capacityFrames * channels];
+    }
+
+    /**
+     * Producer side. Copies up to frames interleaved frames from src.
+     * @return frames stored, the rest is counted as overrun
+     */
+    public int write(short[] src, int offset, int frames) {
+        long w = writePos.get();
+        int free = capacity - (int) (w - readPos.get());
+        int count = Math.min(frames, free);
+        if (count > 0) {
+            int start = (int) (w & mask);
+            int first = Math.min(count, capacity - start);
+            System.arraycopy(src, offset, buffer, start * channels, first * channels);
+            if (count > first) {
+                System.arraycopy(src, offset + first * channels, buffer, 0, (count - first) * channels);
+            }
+            writePos.lazySet(w + count);
+        }
+        if (count < frames) overrunFrames += frames - count;
+        return count;
+    }
+
+    /**
+     * Consumer side. Copies up to frames interleaved frames into dst.
+     * @return frames copied
+     */
+    public int read(short[] dst, int offset, int frames) {
+        long r = readPos.get();
+        int count = take(r, frames);
+        if (count > 0) {
+            int start = (int) (r & mask);
+            int first = Math.min(count, capacity - start);
+            System.arraycopy(buffer, start * channels, dst, offset, first * channels);
+            if (count > first) {
+                System.arraycopy(buffer, 0, dst, offset + first * channels, (count - first) * channels);
+            }
+            readPos.lazySet(r + count);
+        }
+        return count;
+    }
+
+    /**
+     * Consumer side. Drains one channel into the byte buffer using its byte order.
+     * @return bytes written
+     */
+    public int readChannel(ByteBuffer dst, int channel, int maxFrames) {
+        long r = readPos.get();
+        int count = take(r, Math.min(maxFrames, dst.remaining() / 2));
+        int pos = (int) (r & mask);
+        for (int i = 0; i < count; i++) {
+            dst.putShort(buffer[pos * channels + channel]);
+            pos = (pos + 1) & mask;
+        }
+        if (count > 0) readPos.lazySet(r + count);
+        return count * 2;
+    }
+
+    private int take(long r, int frames) {
+        int available = (int) (writePos.get() - r);
+        if (available < frames) {
+            underrunFrames += frames - available;
+            return available;
+        }
+        return frames;
+    }
+
+    /**
+     * Consumer side. Discards everything written so far.
+     */
+    public void clear() {
+        readPos.lazySet(writePos.get());
+    }
+
+    public int availableFrames() {
+        return (int) (writePos.get() - readPos.get());
+    }
+
+    public int getChannels() {
+        return channels;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public long getOverrunFrames() {
+        return overrunFrames;
+    }
+
+    public long getUnderrunFrames() {
+        return underrunFrames;
+    }
+}
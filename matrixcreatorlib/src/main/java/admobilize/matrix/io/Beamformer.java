@@ -0,0 +1,217 @@
+package admobilize.matrix.io;
+
+import android.util.Log;
+
+/**
+ * Delay-and-sum beamformer over the interleaved frames of {@link MicArray}.
+ *
+ * Steering is fixed with {@link #setSteeringAngle(float)}; with tracking enabled
+ * the steered response power of a set of look directions is compared every
+ * 100ms and the loudest one is taken. Fractional delays are applied with linear
+ * interpolation. The time spent per call is measured against the real time
+ * budget of the frames processed and reported periodically.
+ */
+public class Beamformer {
+
+    private static final String TAG = Beamformer.class.getSimpleName();
+    private static final boolean DEBUG = Config.DEBUG;
+
+    private static final float SPEED_OF_SOUND = 343.0f; // m/s
+    private static final int TRACKING_DIRECTIONS = 16;
+    private static final float TRACKING_INTERVAL_SEC = 0.1f;
+    private static final long REPORT_INTERVAL_NS = 10000000000L; // 10s
+
+    private final MicArrayGeometry geometry;
+    private final int channels;
+    private final int sampleRate;
+    private final int maxFrames;
+    private final int history;
+    private final int stride;
+    private final float[] buffer;  // per channel: [history | frames]
+    private final float gain;
+
+    private final float[] delays;
+    private final int[] delayInt;
+    private final float[] delayFrac;
+    private volatile float steeringAngle;
+    private float appliedAngle = Float.NaN;
+
+    private volatile boolean tracking;
+    private final int[][] candidateDelay;
+    private final float[] candidatePower = new float[TRACKING_DIRECTIONS];
+    private final int trackingIntervalFrames;
+    private int framesSinceTrack;
+
+    // CPU budget accounting, only touched by the processing thread
+    private long reportStartNs;
+    private long busyNs;
+    private long budgetNs;
+    private long maxCallNs;
+    private long calls;
+    private long overBudgetCalls;
+    private volatile float lastLoad;
+    private final AudioMetrics.Histogram processUs = AudioMetrics.histogram("beam.process_us");
+
+    public Beamformer(MicArrayGeometry geometry, int sampleRate, int maxFrames) {
+        this.geometry = geometry;
+        this.channels = geometry.size();
+        this.sampleRate = sampleRate;
+        this.maxFrames = maxFrames;
+        float radius = 0;
+        for (int c = 0; c < channels; c++) {
+            radius = Math.max(radius, (float) Math.hypot(geometry.x[c], geometry.y[c]));
+        }
+        this.history = (int) (2 * radius / SPEED_OF_SOUND * sampleRate) + 2;
+        this.stride = history + maxFrames;
+        this.buffer = new float[channels * stride];
+        this.gain = 1.0f / channels;
+        this.delays = new float[channels];
+        this.delayInt = new int[channels];
+        this.delayFrac = new float[channels];
+        this.candidateDelay = new int[TRACKING_DIRECTIONS][channels];
+        for (int d = 0; d < TRACKING_DIRECTIONS; d++) {
+            computeDelays(d * 360f / TRACKING_DIRECTIONS);
+            for (int c = 0; c < channels; c++) candidateDelay[d][c] = Math.round(delays[c]);
+        }
+        this.trackingIntervalFrames = (int) (TRACKING_INTERVAL_SEC * sampleRate);
+    }
+
+    /**
+     * @param degrees look direction on the board plane, same reference as
+     *                {@link MicArrayGeometry#angleOf(int)}
+     */
+    public void setSteeringAngle(float degrees) {
+        steeringAngle = ((degrees % 360f) + 360f) % 360f;
+    }
+
+    public float getSteeringAngle() {
+        return steeringAngle;
+    }
+
+    public void setTracking(boolean enable) {
+        tracking = enable;
+    }
+
+    public boolean isTracking() {
+        return tracking;
+    }
+
+    /**
+     * Beamforms frames interleaved frames from in into mono samples in out.
+     * @return frames written to out
+     */
+    public int process(short[] in, int frames, short[] out) {
+        if (frames > maxFrames) {
+            throw new IllegalArgumentException("frames " + frames + " > max " + maxFrames);
+        }
+        long start = System.nanoTime();
+        float angle = steeringAngle;
+        if (angle != appliedAngle) {
+            computeDelays(angle);
+            for (int c = 0; c < channels; c++) {
+                delayInt[c] = (int) delays[c];
+                delayFrac[c] = delays[c] - delayInt[c];
+            }
+            appliedAngle = angle;
+        }
+
+        int s = 0;
+        for (int n = 0; n < frames; n++) {
+            for (int c = 0; c < channels; c++) {
+                buffer[c * stride + history + n] = in[s++];
+            }
+        }
+
+        for (int n = 0; n < frames; n++) {
+            float sum = 0;
+            for (int c = 0; c < channels; c++) {
+                int idx = c * stride + history + n - delayInt[c];
+                float f = delayFrac[c];
+                sum += buffer[idx] * (1 - f) + buffer[idx - 1] * f;
+            }
+            out[n] = clip(sum * gain);
+        }
+
+        if (tracking) track(frames);
+
+        for (int c = 0; c < channels; c++) {
+            System.arraycopy(buffer, c * stride + frames, buffer, c * stride, history);
+        }
+        account(System.nanoTime() - start, frames);
+        return frames;
+    }
+
+    private void track(int frames) {
+        for (int d = 0; d < TRACKING_DIRECTIONS; d++) {
+            int[] candidate = candidateDelay[d];
+            float power = 0;
+            for (int n = 0; n < frames; n++) {
+                float sum = 0;
+                for (int c = 0; c < channels; c++) {
+                    sum += buffer[c * stride + history + n - candidate[c]];
+                }
+                power += sum * sum;
+            }
+            candidatePower[d] += power;
+        }
+        framesSinceTrack += frames;
+        if (framesSinceTrack < trackingIntervalFrames) return;
+        int best = 0;
+        for (int d = 1; d < TRACKING_DIRECTIONS; d++) {
+            if (candidatePower[d] > candidatePower[best]) best = d;
+        }
+        steeringAngle = best * 360f / TRACKING_DIRECTIONS;
+        for (int d = 0; d < TRACKING_DIRECTIONS; d++) candidatePower[d] = 0;
+        framesSinceTrack = 0;
+    }
+
+    /**
+     * Mics closer to the source hear it first, so they are delayed the most.
+     */
+    private void computeDelays(float degrees) {
+        float min = Float.MAX_VALUE;
+        for (int c = 0; c < channels; c++) {
+            delays[c] = geometry.projection(c, degrees);
+            min = Math.min(min, delays[c]);
+        }
+        for (int c = 0; c < channels; c++) {
+            delays[c] = (delays[c] - min) / SPEED_OF_SOUND * sampleRate;
+        }
+    }
+
+    private static short clip(float v) {
+        if (v > Short.MAX_VALUE) return Short.MAX_VALUE;
+        if (v < Short.MIN_VALUE) return Short.MIN_VALUE;
+        return (short) v;
+    }
+
+    private void account(long elapsedNs, int frames) {
+        processUs.record(elapsedNs / 1000);
+        long frameBudgetNs = frames * 1000000000L / sampleRate;
+        busyNs += elapsedNs;
+        budgetNs += frameBudgetNs;
+        calls++;
+        if (elapsedNs > maxCallNs) maxCallNs = elapsedNs;
+        if (elapsedNs > frameBudgetNs) overBudgetCalls++;
+        long now = System.nanoTime();
+        if (reportStartNs == 0) reportStartNs = now;
+        if (now - reportStartNs < REPORT_INTERVAL_NS || budgetNs == 0) return;
+        lastLoad = (float) busyNs / budgetNs;
+        if (DEBUG) Log.i(TAG, "[BEAM] calls: " + calls + " avg: " + (busyNs / calls / 1000) + "us"
+                + " max: " + (maxCallNs / 1000) + "us load: " + Math.round(lastLoad * 100) + "%"
+                + " over budget: " + overBudgetCalls + " angle: " + appliedAngle);
+        reportStartNs = now;
+        busyNs = 0;
+        budgetNs = 0;
+        maxCallNs = 0;
+        calls = 0;
+        overBudgetCalls = 0;
+    }
+
+    /**
+     * @return fraction of the real time budget used during the last report interval
+     */
+    public float getLoad() {
+        return lastLoad;
+    }
+}
@@ -0,0 +1,124 @@
+package admobilize.matrix.io;
+
+import android.util.Log;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Grants the SPI bus by priority class instead of arrival order: when the bus is
+ * released the highest class with waiters goes next, so a mic burst never queues
+ * behind sensor polls or LED updates. Queueing latency is tracked per class and
+ * logged periodically.
+ */
+public class BusScheduler {
+
+    private static final String TAG = BusScheduler.class.getSimpleName();
+    private static final boolean DEBUG = Config.DEBUG;
+
+    public static final int PRIORITY_AUDIO = 0;
+    public static final int PRIORITY_SENSOR = 1;
+    public static final int PRIORITY_LED = 2;
+    private static final int CLASSES = 3;
+    private static final String[] NAMES = {"audio", "sensor", "led"};
+
+    private static final long REPORT_INTERVAL_NS = 30000000000L; // 30s
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition[] turn = new Condition[CLASSES];
+    private final int[] waiting = new int[CLASSES];
+    private boolean busy;
+
+    // guarded by lock
+    private final long[] grants = new long[CLASSES];
+    private final long[] totalWaitNs = new long[CLASSES];
+    private final long[] maxWaitNs = new long[CLASSES];
+    private long reportStartNs;
+
+    public BusScheduler() {
+        for (int c = 0; c < CLASSES; c++) turn[c] = lock.newCondition();
+    }
+
+    /**
+     * Blocks until the bus is free and no higher class is waiting.
+     */
+    public void acquire(int priority) {
+        long start = System.nanoTime();
+        String report = null;
+        lock.lock();
+        try {
+            waiting[priority]++;
+            while (busy || higherWaiting(priority)) turn[priority].awaitUninterruptibly();
+            waiting[priority]--;
+            busy = true;
+            long waited = System.nanoTime() - start;
+            grants[priority]++;
+            totalWaitNs[priority] += waited;
+            if (waited > maxWaitNs[priority]) maxWaitNs[priority] = waited;
+            if (DEBUG) report = report(start);
+        } finally {
+            lock.unlock();
+        }
+        if (report != null) Log.i(TAG, report); // not under the lock, waiters would stall behind it
+    }
+
+    public void release() {
+        lock.lock();
+        try {
+            busy = false;
+            for (int c = 0; c < CLASSES; c++) {
+                if (waiting[c] > 0) {
+                    turn[c].signal();
+                    break;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean higherWaiting(int priority) {
+        for (int c = 0; c < priority; c++) {
+            if (waiting[c] > 0) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return average queueing latency of the class in the current interval, microseconds
+     */
+    public long getAverageWaitUs(int priority) {
+        lock.lock();
+        try {
+            return grants[priority] == 0 ? 0 : totalWaitNs[priority] / grants[priority] / 1000;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getMaxWaitUs(int priority) {
+        lock.lock();
+        try {
+            return maxWaitNs[priority] / 1000;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Called with the lock held, returns the line to log once it is released
+    private String report(long now) {
+        if (reportStartNs == 0) reportStartNs = now;
+        if (now - reportStartNs < REPORT_INTERVAL_NS) return null;
+        StringBuilder sb = new StringBuilder("[BUS] wait");
+        for (int c = 0; c < CLASSES; c++) {
+            long avg = grants[c] == 0 ? 0 : totalWaitNs[c] / grants[c] / 1000;
+            sb.append(' ').append(NAMES[c]).append(": n=").append(grants[c])
+                    .append(" avg=").append(avg).append("us max=").append(maxWaitNs[c] / 1000).append("us");
+            grants[c] = 0;
+            totalWaitNs[c] = 0;
+            maxWaitNs[c] = 0;
+        }
+        reportStartNs = now;
+        return sb.toString();
+    }
+}
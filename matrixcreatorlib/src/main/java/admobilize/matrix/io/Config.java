@@ -6,6 +6,14 @@ package admobilize.matrix.io;
 public class Config {
     public static final boolean DEBUG = true;
     public static final boolean MATRIX_CREATOR = true; // false for MATRIX_VOICE
+    public static final boolean BEAMFORMING = true;     // false for raw mic0 on the audio driver
+    public static final boolean BEAM_TRACKING = false;  // steer to the loudest direction
+    public static final float BEAM_STEERING_ANGLE = 0f; // fixed look direction in degrees
+    public static final boolean DOA = true;             // direction of arrival on the Everloop
+    public static final boolean DOA_STEERS_BEAM = true; // beamformer follows the DOA angle
+    public static final boolean AEC = true;             // cancel the speaker echo, needs the playback reference
+    public static final int AEC_FILTER_MS = 32;         // echo tail after the bulk delay
+    public static final int AEC_MAX_DELAY_MS = 400;     // largest speaker to mic delay searched
 
 //    public static final String EXTERNAL_DEBUG_IP = "192.168.1.102";
     public static final String EXTERNAL_DEBUG_IP = "10.0.0.140";
@@ -0,0 +1,180 @@
+package admobilize.matrix.io;
+
+import android.os.SystemClock;
+
+/**
+ * GCC-PHAT direction of arrival estimator for the interleaved {@link MicArray} frames.
+ *
+ * Runs on the capture thread: frames are accumulated into a window and, once it
+ * is full, the time delay of each opposite mic pair is taken from the peak of its
+ * phase transform cross correlation. The angle whose expected delays fit those best
+ * is published, together with the RMS energy of each mic, at most
+ * {@link #MAX_PUBLISH_RATE_HZ} times per second. All buffers are allocated up front.
+ */
+public class DoaEstimator implements MicArray.OnFramesListener {
+
+    private static final float SPEED_OF_SOUND = 343.0f; // m/s
+    private static final int WINDOW = 256;               // 16ms at 16KHz
+    private static final int ANGLE_STEP = 5;              // degrees
+    private static final int MIN_RMS = 150;               // below this the room is silent
+    private static final float EPSILON = 1e-9f;
+    public static final int MAX_PUBLISH_RATE_HZ = 10;
+
+    public interface OnDirectionListener {
+        /**
+         * @param angle  degrees, same reference as {@link MicArrayGeometry#angleOf(int)}
+         * @param energy RMS per mic in board order, only valid during the call
+         */
+        void onDirection(float angle, short[] energy);
+    }
+
+    private final int channels;
+    private final Fft fft;
+    private final float[] hann = new float[WINDOW];
+    private final float[][] re;
+    private final float[][] im;
+    private final float[] crossRe = new float[WINDOW];
+    private final float[] crossIm = new float[WINDOW];
+    private final short[] energy;
+    private final double[] energyAcc;
+    private int filled;
+
+    private final int[][] pairs;
+    private final float[] pairLag;
+    private final int[] maxLag;
+    private final float[][] expectedLag; // [angle][pair]
+
+    private OnDirectionListener listener;
+    private final long publishIntervalMs = 1000 / MAX_PUBLISH_RATE_HZ;
+    private long lastPublishMs;
+    private volatile float angle;
+
+    public DoaEstimator(MicArrayGeometry geometry, int sampleRate) {
+        this.channels = geometry.size();
+        this.fft = new Fft(WINDOW);
+        for (int n = 0; n < WINDOW; n++) {
+            hann[n] = (float) (0.5 - 0.5 * Math.cos(2 * Math.PI * n / (WINDOW - 1)));
+        }
+        re = new float[channels][WINDOW];
+        im = new float[channels][WINDOW];
+        energy = new short[channels];
+        energyAcc = new double[channels];
+
+        // opposite mics give the longest baseline
+        int half = channels / 2;
+        pairs = new int[half][];
+        pairLag = new float[half];
+        maxLag = new int[half];
+        for (int p = 0; p < half; p++) {
+            pairs[p] = new int[]{p, p + half};
+            float distance = (float) Math.hypot(geometry.x[p] - geometry.x[p + half],
+                    geometry.y[p] - geometry.y[p + half]);
+            maxLag[p] = (int) Math.ceil(distance / SPEED_OF_SOUND * sampleRate) + 1;
+        }
+        expectedLag = new float[360 / ANGLE_STEP][half];
+        for (int a = 0; a < expectedLag.length; a++) {
+            for (int p = 0; p < half; p++) {
+                float delta = geometry.projection(pairs[p][1], a * ANGLE_STEP)
+                        - geometry.projection(pairs[p][0], a * ANGLE_STEP);
+                expectedLag[a][p] = delta / SPEED_OF_SOUND * sampleRate;
+            }
+        }
+    }
+
+    public void setOnDirectionListener(OnDirectionListener listener) {
+        this.listener = listener;
+    }
+
+    public float getAngle() {
+        return angle;
+    }
+
+    @Override
+    public void onFrames(short[] frames, int count) {
+        int s = 0;
+        for (int n = 0; n < count; n++) {
+            for (int c = 0; c < channels; c++) {
+                short v = frames[s++];
+                re[c][filled] = v;
+                energyAcc[c] += v * v;
+            }
+            if (++filled == WINDOW) {
+                estimate();
+                filled = 0;
+            }
+        }
+    }
+
+    private void estimate() {
+        double total = 0;
+        for (int c = 0; c < channels; c++) {
+            int rms = (int) Math.sqrt(energyAcc[c] / WINDOW);
+            energy[c] = (short) Math.min(rms, Short.MAX_VALUE);
+            total += rms;
+            energyAcc[c] = 0;
+        }
+        long now = SystemClock.elapsedRealtime();
+        if (total / channels < MIN_RMS || now - lastPublishMs < publishIntervalMs) return;
+
+        for (int c = 0; c < channels; c++) {
+            float[] r = re[c];
+            float[] i = im[c];
+            for (int n = 0; n < WINDOW; n++) {
+                r[n] *= hann[n];
+                i[n] = 0;
+            }
+            fft.forward(r, i);
+        }
+        for (int p = 0; p < pairs.length; p++) {
+            pairLag[p] = gccPhat(pairs[p][0], pairs[p][1], maxLag[p]);
+        }
+
+        int best = 0;
+        float bestError = Float.MAX_VALUE;
+        for (int a = 0; a < expectedLag.length; a++) {
+            float error = 0;
+            for (int p = 0; p < pairs.length; p++) {
+                float d = pairLag[p] - expectedLag[a][p];
+                error += d * d;
+            }
+            if (error < bestError) {
+                bestError = error;
+                best = a;
+            }
+        }
+        angle = best * ANGLE_STEP;
+        lastPublishMs = now;
+        OnDirectionListener l = listener;
+        if (l != null) l.onDirection(angle, energy);
+    }
+
+    /**
+     * @return lag in samples of channel a relative to b, where the peak of the
+     * whitened cross correlation lies
+     */
+    private float gccPhat(int a, int b, int maxLag) {
+        for (int k = 0; k < WINDOW; k++) {
+            float xr = re[a][k] * re[b][k] + im[a][k] * im[b][k];
+            float xi = im[a][k] * re[b][k] - re[a][k] * im[b][k];
+            float mag = (float) Math.sqrt(xr * xr + xi * xi) + EPSILON;
+            crossRe[k] = xr / mag;
+            crossIm[k] = xi / mag;
+        }
+        fft.inverse(crossRe, crossIm);
+        int peak = 0;
+        float peakValue = -Float.MAX_VALUE;
+        for (int lag = -maxLag; lag <= maxLag; lag++) {
+            float v = crossRe[(lag + WINDOW) & (WINDOW - 1)];
+            if (v > peakValue) {
+                peakValue = v;
+                peak = lag;
+            }
+        }
+        // parabolic interpolation around the peak
+        float left = crossRe[(peak - 1 + WINDOW) & (WINDOW - 1)];
+        float right = crossRe[(peak + 1 + WINDOW) & (WINDOW - 1)];
+        float denominator = left - 2 * peakValue + right;
+        if (Math.abs(denominator) < EPSILON) return peak;
+        return peak + 0.5f * (left - right) / denominator;
+    }
+}
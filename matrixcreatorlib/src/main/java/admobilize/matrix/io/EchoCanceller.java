@@ -0,0 +1,294 @@
+package admobilize.matrix.io;
+
+import android.util.Log;
+
+/**
+ * Acoustic echo canceller for the mono mic stream.
+ *
+ * The PCM handed to the speaker is written as the reference from the playback
+ * thread; the capture side consumes one reference sample per mic sample, so the
+ * two streams stay aligned while audio plays. The bulk delay between them (track
+ * buffer, air, capture ring) is measured with GCC-PHAT on a decimated window and
+ * the remaining echo path is modelled by an NLMS filter of a few tens of ms.
+ * Adaptation is frozen while the near end talks, detected as a sudden drop of
+ * the echo return loss enhancement once the filter has converged, and the
+ * filter is skipped entirely while there is no reference.
+ */
+public class EchoCanceller {
+
+    private static final String TAG = EchoCanceller.class.getSimpleName();
+    private static final boolean DEBUG = Config.DEBUG;
+
+    private static final float STEP = 0.2f;
+    private static final float REGULARIZATION = 1e4f;
+    private static final float CONVERGED_ERLE_DB = 6f;
+    private static final float DOUBLE_TALK_DROP_DB = 6f;     // block ERLE under the smoothed one
+    private static final float ERLE_SMOOTHING = 0.1f;
+    private static final float ERLE_DECAY_DB = 0.05f;        // per block of double talk, recovers from path changes
+    private static final int DOUBLE_TALK_HOLD_MS = 30;
+    private static final int DECIMATION = 4;
+    private static final int DELAY_WINDOW = 2048;            // decimated samples
+    private static final float DELAY_MIN_PEAK = 6f;          // peak over mean correlation
+    private static final long REPORT_INTERVAL_NS = 10000000000L; // 10s
+
+    private final int sampleRate;
+    private final int taps;
+    private final int maxDelay;
+    private final int keep;
+    private final float[] history;     // reference, shifted down when full so windows never wrap
+    private final float[] weights;
+    private final short[] refBlock;
+    private int historyPos;
+    private int delay;
+    private int silentSamples;
+    private int doubleTalkHold;
+    private float smoothedErle;
+
+    // reference, written by the playback thread and read by the capture side
+    private final AudioRingBuffer reference;
+    private final short[] refScratch = new short[1024];
+    private volatile boolean clearRequested;
+
+    // delay estimation
+    private final Fft fft = new Fft(DELAY_WINDOW * 2);
+    private final float[] micRe = new float[DELAY_WINDOW * 2];
+    private final float[] micIm = new float[DELAY_WINDOW * 2];
+    private final float[] refRe = new float[DELAY_WINDOW * 2];
+    private final float[] refIm = new float[DELAY_WINDOW * 2];
+    private int decimated;
+    private int decimatePhase;
+    private float micAcc;
+    private float refAcc;
+
+    // accounting, only touched by the processing thread
+    private final AudioMetrics.Histogram processUs = AudioMetrics.histogram("aec.process_us");
+    private long busyNs;
+    private long budgetNs;
+    private long reportStartNs;
+    private double micEnergy;
+    private double outEnergy;
+    private long doubleTalkSamples;
+    private long activeSamples;
+    private volatile float lastLoad;
+    private volatile float lastErle;
+
+    /**
+     * @param maxFrames largest block passed to {@link #process(short[], int, short[])}
+     * @param filterMs echo tail modelled after the bulk delay
+     * @param maxDelayMs largest bulk delay searched
+     */
+    public EchoCanceller(int sampleRate, int maxFrames, int filterMs, int maxDelayMs) {
+        this.sampleRate = sampleRate;
+        taps = sampleRate * filterMs / 1000;
+        maxDelay = Math.min(sampleRate * maxDelayMs / 1000, (DELAY_WINDOW - 1) * DECIMATION);
+        keep = maxDelay + taps;
+        history = new float[keep * 2 + maxFrames];
+        historyPos = keep;
+        weights = new float[taps];
+        refBlock = new short[maxFrames];
+        reference = new AudioRingBuffer(1, Integer.highestOneBit(sampleRate) * 2); // ~2s
+    }
+
+    /**
+     * Playback side. Little endian 16 bit PCM exactly as it was accepted by the track.
+     */
+    public void writeReference(byte[] pcm, int offset, int length) {
+        int end = offset + (length & ~1);
+        while (offset < end) {
+            int count = Math.min(refScratch.length, (end - offset) / 2);
+            for (int i = 0; i < count; i++, offset += 2) {
+                refScratch[i] = (short) ((pcm[offset] & 0xFF) | (pcm[offset + 1] << 8));
+            }
+            reference.write(refScratch, 0, count);
+        }
+    }
+
+    /**
+     * Playback side. Drops reference that will never be played, e.g. after a flush.
+     */
+    public void clearReference() {
+        clearRequested = true;
+    }
+
+    /**
+     * Capture side. Removes the echo of the reference from in, out may be in.
+     */
+    public void process(short[] in, int count, short[] out) {
+        long start = System.nanoTime();
+        if (clearRequested) {
+            clearRequested = false;
+            reference.clear();
+        }
+        int got = reference.read(refBlock, 0, count);
+        for (int s = got; s < count; s++) refBlock[s] = 0;
+        if (got > 0) silentSamples = 0;
+        else silentSamples += count;
+
+        if (historyPos + count > history.length) {
+            System.arraycopy(history, historyPos - keep, history, 0, keep);
+            historyPos = keep;
+        }
+        int first = historyPos;
+        for (int s = 0; s < count; s++) history[historyPos++] = refBlock[s];
+        if (silentSamples > maxDelay + taps) { // no echo left to cancel
+            if (out != in) System.arraycopy(in, 0, out, 0, count);
+            decimated = 0;
+            return;
+        }
+        estimateDelay(in, count, first);
+        cancel(in, count, out, first);
+        account(System.nanoTime() - start, count);
+    }
+
+    private void cancel(short[] in, int count, short[] out, int first) {
+        // x window of sample s: history[newest - delay - taps + 1 .. newest - delay]
+        int base0 = first - delay - taps + 1;
+        float energy = 0;
+        for (int k = 0; k < taps; k++) energy += history[base0 + k] * history[base0 + k];
+        // decided on the previous block, the filter is not worth a second pass
+        boolean adapt = doubleTalkHold <= 0;
+        if (!adapt) {
+            doubleTalkHold -= count;
+            doubleTalkSamples += count;
+        }
+        double blockMic = 0;
+        double blockOut = 0;
+        for (int s = 0; s < count; s++) {
+            int base = base0 + s;
+            if (s > 0) {
+                float in0 = history[base + taps - 1];
+                float out0 = history[base - 1];
+                energy += in0 * in0 - out0 * out0;
+                if (energy < 0) energy = 0;
+            }
+            float d = in[s];
+            float y = 0;
+            for (int k = 0; k < taps; k++) y += weights[k] * history[base + k];
+            float e = d - y;
+            if (adapt) {
+                float g = STEP * e / (energy + REGULARIZATION);
+                for (int k = 0; k < taps; k++) weights[k] += g * history[base + k];
+            }
+            out[s] = clip(e);
+            blockMic += d * d;
+            blockOut += e * e;
+        }
+        detectDoubleTalk(blockMic, blockOut, adapt);
+        micEnergy += blockMic;
+        outEnergy += blockOut;
+        activeSamples += count;
+    }
+
+    private void detectDoubleTalk(double mic, double out, boolean adapted) {
+        if (mic <= 0 || out <= 0) return;
+        float erle = (float) (10 * Math.log10(mic / out));
+        if (!adapted) {
+            smoothedErle -= ERLE_DECAY_DB;
+            return;
+        }
+        if (smoothedErle > CONVERGED_ERLE_DB && erle < smoothedErle - DOUBLE_TALK_DROP_DB) {
+            doubleTalkHold = sampleRate * DOUBLE_TALK_HOLD_MS / 1000;
+            return;
+        }
+        smoothedErle += ERLE_SMOOTHING * (erle - smoothedErle);
+    }
+
+    // Decimated mic and reference windows, correlated once a window is full
+    private void estimateDelay(short[] in, int count, int first) {
+        for (int s = 0; s < count; s++) {
+            micAcc += in[s];
+            refAcc += history[first + s];
+            if (++decimatePhase < DECIMATION) continue;
+            decimatePhase = 0;
+            micRe[decimated] = micAcc;
+            refRe[decimated] = refAcc;
+            micAcc = 0;
+            refAcc = 0;
+            if (++decimated == DELAY_WINDOW) {
+                correlate();
+                decimated = 0;
+            }
+        }
+    }
+
+    private void correlate() {
+        for (int i = 0; i < DELAY_WINDOW; i++) {
+            micIm[i] = 0;
+            refIm[i] = 0;
+            micRe[i + DELAY_WINDOW] = micIm[i + DELAY_WINDOW] = 0;
+            refRe[i + DELAY_WINDOW] = refIm[i + DELAY_WINDOW] = 0;
+        }
+        fft.forward(micRe, micIm);
+        fft.forward(refRe, refIm);
+        for (int i = 0; i < micRe.length; i++) { // mic * conj(ref), phase transform
+            float re = micRe[i] * refRe[i] + micIm[i] * refIm[i];
+            float im = micIm[i] * refRe[i] - micRe[i] * refIm[i];
+            float mag = (float) Math.sqrt(re * re + im * im) + 1e-9f;
+            micRe[i] = re / mag;
+            micIm[i] = im / mag;
+        }
+        fft.inverse(micRe, micIm);
+        int lags = maxDelay / DECIMATION;
+        int best = 0;
+        float sum = 0;
+        for (int lag = 0; lag <= lags; lag++) {
+            sum += Math.abs(micRe[lag]);
+            if (micRe[lag] > micRe[best]) best = lag;
+        }
+        float mean = sum / (lags + 1);
+        if (mean <= 0 || micRe[best] / mean < DELAY_MIN_PEAK) return;
+        int peak = best * DECIMATION;
+        if (peak >= delay && peak < delay + taps / 2) return; // already inside the filter
+        int estimate = Math.max(0, peak - taps / 8);  // a little pre-echo room
+        for (int k = 0; k < taps; k++) weights[k] = 0;
+        smoothedErle = 0;
+        if (DEBUG) Log.i(TAG, "[AEC] bulk delay " + delay * 1000 / sampleRate + "ms -> "
+                + estimate * 1000 / sampleRate + "ms");
+        delay = estimate;
+    }
+
+    private static short clip(float v) {
+        if (v > Short.MAX_VALUE) return Short.MAX_VALUE;
+        if (v < Short.MIN_VALUE) return Short.MIN_VALUE;
+        return (short) v;
+    }
+
+    private void account(long elapsedNs, int frames) {
+        processUs.record(elapsedNs / 1000);
+        busyNs += elapsedNs;
+        budgetNs += frames * 1000000000L / sampleRate;
+        long now = System.nanoTime();
+        if (reportStartNs == 0) reportStartNs = now;
+        if (now - reportStartNs < REPORT_INTERVAL_NS || budgetNs == 0) return;
+        lastLoad = (float) busyNs / budgetNs;
+        lastErle = outEnergy > 0 ? (float) (10 * Math.log10(micEnergy / outEnergy)) : 0;
+        if (DEBUG) Log.i(TAG, "[AEC] load: " + Math.round(lastLoad * 100) + "% delay: "
+                + getDelayMs() + "ms erle: " + Math.round(lastErle) + "dB double talk: "
+                + (activeSamples > 0 ? doubleTalkSamples * 100 / activeSamples : 0) + "%");
+        reportStartNs = now;
+        busyNs = 0;
+        budgetNs = 0;
+        micEnergy = 0;
+        outEnergy = 0;
+        doubleTalkSamples = 0;
+        activeSamples = 0;
+    }
+
+    public int getDelayMs() {
+        return delay * 1000 / sampleRate;
+    }
+
+    /**
+     * @return echo return loss enhancement of the last report interval, in dB
+     */
+    public float getErle() {
+        return lastErle;
+    }
+
+    /**
+     * @return fraction of the real time budget used during the last report interval
+     */
+    public float getLoad() {
+        return lastLoad;
+    }
+}
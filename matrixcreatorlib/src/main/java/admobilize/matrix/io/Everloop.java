@@ -13,6 +13,7 @@ public class Everloop extends SensorBase {
     public ArrayList<LedValue> ledImage = new ArrayList<>();
     private boolean toggleColor;
     private int led_count=35;
+    private byte[] frame;
 
     public Everloop(Wishbone wb) {
         super(wb);
@@ -22,24 +23,21 @@ public class Everloop extends SensorBase {
         init();
     }
 
+    /**
+     * Pushes the whole ring in one burst: two registers per LED, green/red then blue/white.
+     */
     public boolean write() {
         if (wb==null) return false;
-        LedValue led;
-        byte[] wb_data_buffer = new byte[2];
-        int addr_offset = 0;
-
-        Iterator<LedValue> it = ledImage.iterator();
-        while(it.hasNext()){
-            led=it.next();
-            wb_data_buffer[0] = led.green;
-            wb_data_buffer[1] = led.red;
-            wb.SpiWrite((short)(kEverloopBaseAddress + addr_offset), wb_data_buffer, (short) 0);
-            wb_data_buffer[0] = led.blue;
-            wb_data_buffer[1] = led.white;
-            wb.SpiWrite((short)(kEverloopBaseAddress + addr_offset+1), wb_data_buffer, (short) 0);
-            addr_offset = addr_offset + 2;
+        int count = Math.min(ledImage.size(), led_count);
+        int pos = 0;
+        for (int i = 0; i < count; i++) {
+            LedValue led = ledImage.get(i);
+            frame[pos++] = led.green;
+            frame[pos++] = led.red;
+            frame[pos++] = led.blue;
+            frame[pos++] = led.white;
         }
-        return true;
+        return wb.SpiWriteFrame((short) kEverloopBaseAddress, frame, pos);
     }
 
     public void clear(){
@@ -134,6 +132,7 @@ public class Everloop extends SensorBase {
     }
 
     public void init(){
+        frame = new byte[led_count*4];
         for(int i=0;i<led_count;i++){
             ledImage.add(new LedValue());
         }
@@ -0,0 +1,79 @@
+package admobilize.matrix.io;
+
+/**
+ * In-place radix-2 complex FFT with precomputed twiddles and bit reversal
+ * table, so transforms do not allocate.
+ */
+public class Fft {
+
+    private final int size;
+    private final float[] cos;
+    private final float[] sin;
+    private final int[] reversed;
+
+    public Fft(int size) {
+        if (size < 2 || (size & (size - 1)) != 0) {
+            throw new IllegalArgumentException("size must be a power of two: " + size);
+        }
+        this.size = size;
+        cos = new float[size / 2];
+        sin = new float[size / 2];
+        for (int i = 0; i < size / 2; i++) {
+            cos[i] = (float) Math.cos(-2 * Math.PI * i / size);
+            sin[i] = (float) Math.sin(-2 * Math.PI * i / size);
+        }
+        int bits = Integer.numberOfTrailingZeros(size);
+        reversed = new int[size];
+        for (int i = 0; i < size; i++) {
+            reversed[i] = Integer.reverse(i) >>> (32 - bits);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void forward(float[] re, float[] im) {
+        transform(re, im, false);
+    }
+
+    /**
+     * Inverse transform, scaled by 1/size.
+     */
+    public void inverse(float[] re, float[] im) {
+        transform(re, im, true);
+        float scale = 1.0f / size;
+        for (int i = 0; i < size; i++) {
+            re[i] *= scale;
+            im[i] *= scale;
+        }
+    }
+
+    private void transform(float[] re, float[] im, boolean inverse) {
+        for (int i = 0; i < size; i++) {
+            int j = reversed[i];
+            if (j > i) {
+                float t = re[i]; re[i] = re[j]; re[j] = t;
+                t = im[i]; im[i] = im[j]; im[j] = t;
+            }
+        }
+        for (int len = 2; len <= size; len <<= 1) {
+            int half = len >> 1;
+            int step = size / len;
+            for (int i = 0; i < size; i += len) {
+                for (int k = 0; k < half; k++) {
+                    float wr = cos[k * step];
+                    float wi = inverse ? -sin[k * step] : sin[k * step];
+                    int a = i + k;
+                    int b = a + half;
+                    float xr = re[b] * wr - im[b] * wi;
+                    float xi = re[b] * wi + im[b] * wr;
+                    re[b] = re[a] - xr;
+                    im[b] = im[a] - xi;
+                    re[a] += xr;
+                    im[a] += xi;
+                }
+            }
+        }
+    }
+}
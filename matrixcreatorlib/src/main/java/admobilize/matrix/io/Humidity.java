@@ -15,15 +15,17 @@ public class Humidity extends SensorBase {
     private float humidity;
     private float temperature;
 
+    private final byte[] data = new byte[8];
+    private final ByteBuffer buffer = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+
     public Humidity(Wishbone wb) {
         super(wb);
     }
 
     public void read (){
-        byte[] data = new byte[8];
         wb.SpiRead((short) (kMCUBaseAddress+(kMemoryOffsetHumidity >> 1)),data,8);
-        this.humidity = ByteBuffer.wrap(data,0,4).order(ByteOrder.LITTLE_ENDIAN).getFloat();
-        this.temperature= ByteBuffer.wrap(data,4,4).order(ByteOrder.LITTLE_ENDIAN).getFloat();
+        this.humidity = buffer.getFloat(0);
+        this.temperature= buffer.getFloat(4);
     }
 
     public float getHumidity() {
@@ -29,25 +29,27 @@ public class IMU extends SensorBase {
     private float mz;
 
 
+    private final byte[] data = new byte[48];
+    private final ByteBuffer buffer = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+
     public IMU(Wishbone wb) {
         super(wb);
     }
 
     public void read (){
-        byte[] data = new byte[48];
         wb.SpiRead((short) (kMCUBaseAddress+(kMemoryOffsetIMU >> 1)),data,48);
-        this.yaw = ByteBuffer.wrap(data,0,4).order(ByteOrder.LITTLE_ENDIAN).getFloat();
-        this.pitch = ByteBuffer.wrap(data,4,4).order(ByteOrder.LITTLE_ENDIAN).getFloat();
-        this.roll = ByteBuffer.wrap(data,8,4).order(ByteOrder.LITTLE_ENDIAN).getFloat();
-        this.ax= ByteBuffer.wrap(data,12,4).order(ByteOrder.LITTLE_ENDIAN).getFloat();
-        this.ay= ByteBuffer.wrap(data,16,4).order(ByteOrder.LITTLE_ENDIAN).getFloat();
-        this.az= ByteBuffer.wrap(data,20,4).order(ByteOrder.LITTLE_ENDIAN).getFloat();
-        this.gx= ByteBuffer.wrap(data,24,4).order(ByteOrder.LITTLE_ENDIAN).getFloat();
-        this.gy= ByteBuffer.wrap(data,28,4).order(ByteOrder.LITTLE_ENDIAN).getFloat();
-        this.gz= ByteBuffer.wrap(data,32,4).order(ByteOrder.LITTLE_ENDIAN).getFloat();
-        this.mx= ByteBuffer.wrap(data,36,4).order(ByteOrder.LITTLE_ENDIAN).getFloat();
-        this.my= ByteBuffer.wrap(data,40,4).order(ByteOrder.LITTLE_ENDIAN).getFloat();
-        this.mz= ByteBuffer.wrap(data,44,4).order(ByteOrder.LITTLE_ENDIAN).getFloat();
+        this.yaw = buffer.getFloat(0);
+        this.pitch = buffer.getFloat(4);
+        this.roll = buffer.getFloat(8);
+        this.ax= buffer.getFloat(12);
+        this.ay= buffer.getFloat(16);
+        this.az= buffer.getFloat(20);
+        this.gx= buffer.getFloat(24);
+        this.gy= buffer.getFloat(28);
+        this.gz= buffer.getFloat(32);
+        this.mx= buffer.getFloat(36);
+        this.my= buffer.getFloat(40);
+        this.mz= buffer.getFloat(44);
     }
 
     public float getYaw() {
@@ -2,6 +2,8 @@ package admobilize.matrix.io;
 
 import android.media.AudioDeviceInfo;
 import android.media.AudioFormat;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.util.Log;
 
 import com.google.android.things.pio.PeripheralManagerService;
@@ -11,6 +13,7 @@ import com.google.android.things.userdriver.UserDriverManager;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.List;
 
 
@@ -34,6 +37,17 @@ public class MatrixDriver implements AutoCloseable {
     private SpiDevice spiDevice;
     public Everloop everloop;
     public MicArray micArray;
+    public Beamformer beamformer;
+    public DoaEstimator doaEstimator;
+    public EchoCanceller echoCanceller;
+
+    private HandlerThread everloopThread;
+    private Handler everloopHandler;
+    private volatile boolean directionDisplay;
+    private volatile float doaAngle;
+    private final short[] doaEnergy = new short[MicArray.CHANNELS];
+    private final ArrayList<Short> ringEnergy = new ArrayList<>();
+    private float[] micAngles;
 
 
     private static final AudioFormat AUDIO_FORMAT_IN_MONO =
@@ -75,28 +89,134 @@ public class MatrixDriver implements AutoCloseable {
         Wishbone wb = new Wishbone(spiDevice);
         everloop = new Everloop(wb); // NOTE: please change to right board on Config class
         micArray = new MicArray(wb);
+        MicArrayGeometry geometry = new MicArrayGeometry(micArray.getMicOrder());
+        if (Config.BEAMFORMING) {
+            beamformer = new Beamformer(geometry, SAMPLE_RATE, MicArray.FRAMES_PER_BURST);
+            beamformer.setSteeringAngle(Config.BEAM_STEERING_ANGLE);
+            beamformer.setTracking(Config.BEAM_TRACKING);
+        }
+        if (Config.AEC) {
+            echoCanceller = new EchoCanceller(SAMPLE_RATE, MicArray.FRAMES_PER_BURST,
+                    Config.AEC_FILTER_MS, Config.AEC_MAX_DELAY_MS);
+        }
+        if (Config.DOA) {
+            micAngles = new float[geometry.size()];
+            for (int c = 0; c < micAngles.length; c++) {
+                micAngles[c] = geometry.angleOf(c);
+                ringEnergy.add((short) 0);
+            }
+            everloopThread = new HandlerThread("everloopThread");
+            everloopThread.start();
+            everloopHandler = new Handler(everloopThread.getLooper());
+            doaEstimator = new DoaEstimator(geometry, SAMPLE_RATE);
+            doaEstimator.setOnDirectionListener(onDirectionListener);
+            micArray.setOnFramesListener(doaEstimator);
+        }
+    }
+
+    /**
+     * Lights the Everloop toward the speaker while enabled. Nobody else should
+     * draw on the ring until {@link #stopDirectionDisplay()} is called.
+     */
+    public void startDirectionDisplay() {
+        directionDisplay = true;
+    }
+
+    public void stopDirectionDisplay() {
+        synchronized (everloop) {
+            directionDisplay = false;
+        }
     }
 
+    private DoaEstimator.OnDirectionListener onDirectionListener = new DoaEstimator.OnDirectionListener() {
+        @Override
+        public void onDirection(float angle, short[] energy) {
+            if (beamformer != null && Config.DOA_STEERS_BEAM) beamformer.setSteeringAngle(angle);
+            if (!directionDisplay) return;
+            synchronized (doaEnergy) {
+                System.arraycopy(energy, 0, doaEnergy, 0, doaEnergy.length);
+            }
+            doaAngle = angle;
+            everloopHandler.removeCallbacks(renderDirection);
+            everloopHandler.post(renderDirection);
+        }
+    };
+
+    private Runnable renderDirection = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (everloop) {
+                if (!directionDisplay) return;
+                float angle = doaAngle;
+                synchronized (doaEnergy) {
+                    for (int c = 0; c < doaEnergy.length; c++) {
+                        // full energy on the mics facing the speaker, dimmed elsewhere
+                        double facing = Math.max(0, Math.cos(Math.toRadians(angle - micAngles[c])));
+                        ringEnergy.set(c, (short) (doaEnergy[c] * (0.2 + 0.8 * facing)));
+                    }
+                }
+                everloop.drawMicArrayEnergy(ringEnergy);
+                everloop.write();
+            }
+        }
+    };
+
     @Override
     public void close() throws Exception {
         unregisterAudioInputDriver();
+        micArray.close();
+        if (everloopThread != null) {
+            micArray.setOnFramesListener(null);
+            everloopThread.quitSafely();
+            everloopThread = null;
+        }
     }
 
     private class AudioInputUserDriver extends AudioInputDriver {
 
+        private final short[] frames = new short[MicArray.FRAMES_PER_BURST * MicArray.CHANNELS];
+        private final short[] mono = new short[MicArray.FRAMES_PER_BURST];
+        private final AudioMetrics.Histogram readBytes = AudioMetrics.histogram("driver.read_bytes");
+
         @Override
         public void onStandbyChanged(boolean b) {
         }
 
         @Override
         public int read(ByteBuffer byteBuffer, int i) {
+            if (beamformer != null || echoCanceller != null) {
+                int bytes = readProcessed(byteBuffer, i);
+                readBytes.record(bytes);
+                return bytes;
+            }
             try {
-                return micArray.readFromDevice(byteBuffer, i);
+                int bytes = micArray.readFromDevice(byteBuffer, i);
+                readBytes.record(bytes);
+                return bytes;
             } catch (IOException e) {
                 Log.e(TAG, "[MIC] error during readFromDevice operation:", e);
                 return -1;
             }
         }
+
+        private int readProcessed(ByteBuffer byteBuffer, int i) {
+            int wanted = Math.min(i, byteBuffer.remaining()) / 2;
+            int total = 0;
+            while (total < wanted) {
+                int count = micArray.readFrames(frames, 0, Math.min(wanted - total, mono.length));
+                if (count <= 0) break;
+                if (beamformer != null) {
+                    beamformer.process(frames, count, mono);
+                } else {
+                    int channel = micArray.getMonoChannel();
+                    for (int s = 0; s < count; s++) mono[s] = frames[s * MicArray.CHANNELS + channel];
+                }
+                if (echoCanceller != null) echoCanceller.process(mono, count, mono);
+                for (int s = 0; s < count; s++) byteBuffer.putShort(mono[s]);
+                total += count;
+            }
+            return total * 2;
+        }
     }
 
     public void registerAudioInputDriver() {
@@ -1,5 +1,6 @@
 package admobilize.matrix.io;
 
+import android.os.Process;
 import android.util.Log;
 
 import com.google.android.things.pio.Gpio;
@@ -8,9 +9,7 @@ import com.google.android.things.pio.PeripheralManagerService;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.util.ArrayDeque;
-import java.util.ArrayList;
+import java.util.concurrent.Semaphore;
 
 /**
  * Created by Antonio Vanegas @hpsaturn on 12/20/16.
@@ -21,44 +20,53 @@ public class MicArray extends SensorBase {
     private static final String TAG = MicArray.class.getSimpleName();
     private static final boolean DEBUG = Config.DEBUG;
 
-    private boolean inRead;
+    public static final int CHANNELS = 8;
+    public static final int FRAMES_PER_BURST = 128;
+    private static final int RING_CAPACITY_FRAMES = 4096; // 256ms at 16KHz
 
-    private byte[] data = new byte[128*8*2];
-    private ArrayDeque<Short> mic0 = new ArrayDeque<>();
-    private ArrayDeque<Short> mic1 = new ArrayDeque<>();
-    private ArrayDeque<Short> mic2 = new ArrayDeque<>();
-    private ArrayDeque<Short> mic3 = new ArrayDeque<>();
-    private ArrayDeque<Short> mic4 = new ArrayDeque<>();
-    private ArrayDeque<Short> mic5 = new ArrayDeque<>();
-    private ArrayDeque<Short> mic6 = new ArrayDeque<>();
-    private ArrayDeque<Short> mic7 = new ArrayDeque<>();
+    private final Semaphore dataReady = new Semaphore(0);
+    private CaptureThread captureThread;
+    private volatile long missedBursts;
+    private volatile long lastEdgeNs;
 
-    private ArrayList<ArrayDeque> micarray=new ArrayList<>();
+    // capture thread metrics
+    private final AudioMetrics.Histogram edgeToBurstUs = AudioMetrics.histogram("mic.edge_to_burst_us");
+    private final AudioMetrics.Counter framesProduced = AudioMetrics.counter("mic.frames_produced");
+    private final AudioMetrics.Counter framesOverrun = AudioMetrics.counter("mic.frames_overrun");
+    private final AudioMetrics.Counter burstsMissed = AudioMetrics.counter("mic.bursts_missed");
+    // consumer metrics
+    private final AudioMetrics.Counter framesConsumed = AudioMetrics.counter("mic.frames_consumed");
+    private final AudioMetrics.Counter framesUnderrun = AudioMetrics.counter("mic.frames_underrun");
+
+    private byte[] data = new byte[FRAMES_PER_BURST*CHANNELS*2];
+    private final short[] samples = new short[FRAMES_PER_BURST*CHANNELS];
+    private final AudioRingBuffer ring = new AudioRingBuffer(CHANNELS, RING_CAPACITY_FRAMES);
+    private long lastOverrunFrames;
+
+    private OnFramesListener framesListener;
+
+    private final int[] micOrder;
+    private final int[] micByteOffset = new int[CHANNELS];
+    private final int monoChannel;
     private Gpio gpio;
-    private boolean isReadyData;
-    private boolean stopService;
+    private volatile boolean stopService;
+    private volatile boolean flushRequested;
 
     public MicArray(Wishbone wb) {
         super(wb);
         if(Config.MATRIX_CREATOR) {
-            micarray.add(mic3);  // Order for MEMs position on the board
-            micarray.add(mic4);
-            micarray.add(mic5);
-            micarray.add(mic6);
-            micarray.add(mic7);
-            micarray.add(mic0);
-            micarray.add(mic1);
-            micarray.add(mic2);
+            micOrder = new int[]{3, 4, 5, 6, 7, 0, 1, 2};  // Order for MEMs position on the board
         }else{
-            micarray.add(mic0);  // Order for MEMs position on the MATRIX Voice board.
-            micarray.add(mic1);
-            micarray.add(mic2);
-            micarray.add(mic3);
-            micarray.add(mic4);
-            micarray.add(mic5);
-            micarray.add(mic6);
-            micarray.add(mic7);
+            micOrder = new int[]{0, 1, 2, 3, 4, 5, 6, 7};  // Order for MEMs position on the MATRIX Voice board.
         }
+        int mono = 0;
+        for (int c = 0; c < CHANNELS; c++) {
+            micByteOffset[c] = micOrder[c] * 2;
+            if (micOrder[c] == 0) mono = c;
+        }
+        monoChannel = mono; // legacy mono stream is still the raw mic0
+        captureThread = new CaptureThread();
+        captureThread.start();
         configMicDataInterrupt();
     }
 
@@ -76,11 +84,15 @@ public class MicArray extends SensorBase {
         }
     }
 
+    // Only wakes the capture thread, the burst is read there
     private GpioCallback onMicDataCallback = new GpioCallback() {
         @Override
         public boolean onGpioEdge(Gpio gpio) {
-            readFromDevice();
-            return super.onGpioEdge(gpio);
+            if(!stopService) {
+                lastEdgeNs = System.nanoTime();
+                dataReady.release();
+            }
+            return true;
         }
         @Override
         public void onGpioError(Gpio gpio, int error) {
@@ -89,51 +101,165 @@ public class MicArray extends SensorBase {
         }
     };
 
+    private class CaptureThread extends Thread {
+
+        private volatile boolean running = true;
+
+        CaptureThread() {
+            super("micCaptureThread");
+        }
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+            while (running) {
+                try {
+                    dataReady.acquire();
+                } catch (InterruptedException e) {
+                    continue;
+                }
+                // edges that arrived while we were busy are bursts the FPGA already overwrote
+                int missed = dataReady.drainPermits();
+                if (missed > 0) {
+                    missedBursts += missed;
+                    burstsMissed.add(missed);
+                    if (DEBUG) Log.w(TAG, "[MIC] skip readFromDevice data! missed bursts: " + missedBursts);
+                }
+                if (!running || stopService) continue;
+                readFromDevice();
+            }
+        }
+
+        void quit() {
+            running = false;
+            interrupt();
+        }
+    }
+
     private void readFromDevice(){
-        if(inRead==false&&!stopService) {
-            inRead = true;
-            wb.SpiReadBurst((short) kMicrophoneArrayBaseAddress, data, 128 * 8 * 2);
-            appendData();
-            inRead = false;
-        }else if(!stopService)
-            Log.w(TAG,"[MIC] skip readFromDevice data!");
+        wb.SpiReadBurst((short) kMicrophoneArrayBaseAddress, data, data.length, BusScheduler.PRIORITY_AUDIO);
+        edgeToBurstUs.record((System.nanoTime() - lastEdgeNs) / 1000);
+        appendData();
     }
 
     public int readFromDevice(ByteBuffer byteBuffer, int i) throws IOException {
-        if(isReadyData&&!stopService) {
-            int oldpos = byteBuffer.position();
-            for (int x = 0; x < (i / 2); x++) {
-                byteBuffer.putShort(mic0.poll());
-            }
-            int newpos = byteBuffer.position();
-//            Log.d(TAG, "[MIC] byteBuffer bytes read: "+(newpos-oldpos));
-            return newpos - oldpos;
+        if(!prepareRead()) return 0;
+        int wanted = Math.min(i, byteBuffer.remaining()) / 2;
+        int bytes = ring.readChannel(byteBuffer, monoChannel, wanted);
+        consumed(wanted, bytes / 2);
+        return bytes;
+    }
+
+    /**
+     * Multichannel read: copies up to frames interleaved frames of {@link #CHANNELS}
+     * samples each, already in board order (see {@link #getMicOrder()}).
+     * @return frames copied
+     */
+    public int readFrames(short[] dst, int offset, int frames) {
+        if(!prepareRead()) return 0;
+        int count = ring.read(dst, offset, frames);
+        consumed(frames, count);
+        return count;
+    }
+
+    private void consumed(int wanted, int count) {
+        framesConsumed.add(count);
+        if (count < wanted) framesUnderrun.add(wanted - count);
+    }
+
+    private boolean prepareRead() {
+        if(flushRequested) {  // only the consumer may move the read position
+            flushRequested = false;
+            ring.clear();
         }
-        return 0;
+        return !stopService;
+    }
+
+    public int availableFrames() {
+        return ring.availableFrames();
     }
 
     private void appendData(){
-        isReadyData=false;
-        for (int i=0;i<128;i++){ // 8 mics are joined on data
-            // TODO: implement all mics (see possible memory leak)
-            mic0.add(ByteBuffer.wrap(data,(i*8+0)*2,2).order(ByteOrder.BIG_ENDIAN).getShort());
-//            mic1.add(ByteBuffer.wrap(data,(i*8+1)*2,2).order(ByteOrder.BIG_ENDIAN).getShort());
-//            mic2.add(ByteBuffer.wrap(data,(i*8+2)*2,2).order(ByteOrder.BIG_ENDIAN).getShort());
-//            mic3.add(ByteBuffer.wrap(data,(i*8+3)*2,2).order(ByteOrder.BIG_ENDIAN).getShort());
-//            mic4.add(ByteBuffer.wrap(data,(i*8+4)*2,2).order(ByteOrder.BIG_ENDIAN).getShort());
-//            mic5.add(ByteBuffer.wrap(data,(i*8+5)*2,2).order(ByteOrder.BIG_ENDIAN).getShort());
-//            mic6.add(ByteBuffer.wrap(data,(i*8+6)*2,2).order(ByteOrder.BIG_ENDIAN).getShort());
-//            mic7.add(ByteBuffer.wrap(data,(i*8+7)*2,2).order(ByteOrder.BIG_ENDIAN).getShort());
+        int s = 0;
+        for (int i=0;i<FRAMES_PER_BURST;i++){ // 8 mics are joined on data
+            int frame = i*CHANNELS*2;
+            for (int c=0;c<CHANNELS;c++){
+                int j = frame + micByteOffset[c];
+                samples[s++] = (short) ((data[j] << 8) | (data[j+1] & 0xFF)); // big endian
+            }
         }
-        isReadyData=true;
+        int written = ring.write(samples, 0, FRAMES_PER_BURST);
+        framesProduced.add(written);
+        if(written < FRAMES_PER_BURST) framesOverrun.add(FRAMES_PER_BURST - written);
+        OnFramesListener listener = framesListener;
+        if(listener != null) listener.onFrames(samples, FRAMES_PER_BURST);
+        long overrun = ring.getOverrunFrames();
+        if(overrun != lastOverrunFrames) {
+            if(DEBUG) Log.w(TAG, "[MIC] ring overrun, total frames dropped: " + overrun);
+            lastOverrunFrames = overrun;
+        }
+    }
+
+    /**
+     * Called on the capture thread after every burst, keep it short.
+     */
+    public interface OnFramesListener {
+        /**
+         * @param frames interleaved frames in board order, only valid during the call
+         */
+        void onFrames(short[] frames, int count);
+    }
+
+    public void setOnFramesListener(OnFramesListener listener) {
+        this.framesListener = listener;
+    }
+
+    /**
+     * @return raw FPGA channel for each position of the interleaved frames
+     */
+    public int[] getMicOrder() {
+        return micOrder.clone();
+    }
+
+    public int getMonoChannel() {
+        return monoChannel;
+    }
+
+    public long getOverrunFrames() {
+        return ring.getOverrunFrames();
+    }
+
+    public long getUnderrunFrames() {
+        return ring.getUnderrunFrames();
+    }
+
+    public long getMissedBursts() {
+        return missedBursts;
     }
 
     public void stop(){
         stopService=true;
-        for (ArrayDeque aMicarray : micarray) aMicarray.clear();
+        flushRequested=true;
     }
 
     public void resume() {
         stopService=false;
     }
+
+    public void close() {
+        stop();
+        if (gpio != null) {
+            gpio.unregisterGpioCallback(onMicDataCallback);
+            try {
+                gpio.close();
+            } catch (IOException e) {
+                Log.w(TAG, "[MIC] error closing mic data GPIO", e);
+            }
+            gpio = null;
+        }
+        if (captureThread != null) {
+            captureThread.quit();
+            captureThread = null;
+        }
+    }
 }
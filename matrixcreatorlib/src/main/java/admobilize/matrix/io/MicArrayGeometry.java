@@ -0,0 +1,64 @@
+package admobilize.matrix.io;
+
+/**
+ * MEMS microphone positions (meters, board centered) for the interleaved
+ * frames produced by {@link MicArray}, i.e. already permuted by its mic order.
+ */
+public class MicArrayGeometry {
+
+    // Raw FPGA channel positions in mm, same tables as matrix-hal
+    private static final float[][] CREATOR_MM = {
+            {20.0908795f, -48.5036755f},
+            {-20.0908795f, -48.5036755f},
+            {-48.5036755f, -20.0908795f},
+            {-48.5036755f, 20.0908795f},
+            {-20.0908795f, 48.5036755f},
+            {20.0908795f, 48.5036755f},
+            {48.5036755f, 20.0908795f},
+            {48.5036755f, -20.0908795f}
+    };
+
+    private static final float[][] VOICE_MM = {
+            {0.00f, 0.00f},
+            {-38.13f, 3.58f},
+            {-20.98f, 32.04f},
+            {11.97f, 36.38f},
+            {35.91f, 13.32f},
+            {32.81f, -19.77f},
+            {5.00f, -37.97f},
+            {-26.57f, -27.58f}
+    };
+
+    public final float[] x;
+    public final float[] y;
+
+    public MicArrayGeometry(int[] micOrder) {
+        float[][] table = Config.MATRIX_CREATOR ? CREATOR_MM : VOICE_MM;
+        x = new float[micOrder.length];
+        y = new float[micOrder.length];
+        for (int c = 0; c < micOrder.length; c++) {
+            x[c] = table[micOrder[c]][0] / 1000f;
+            y[c] = table[micOrder[c]][1] / 1000f;
+        }
+    }
+
+    public int size() {
+        return x.length;
+    }
+
+    /**
+     * @return angle of the mic seen from the board center, degrees [0,360)
+     */
+    public float angleOf(int channel) {
+        float deg = (float) Math.toDegrees(Math.atan2(y[channel], x[channel]));
+        return deg < 0 ? deg + 360f : deg;
+    }
+
+    /**
+     * @return projection of the mic position on the unit vector pointing to angle
+     */
+    public float projection(int channel, float degrees) {
+        double rad = Math.toRadians(degrees);
+        return (float) (x[channel] * Math.cos(rad) + y[channel] * Math.sin(rad));
+    }
+}
@@ -16,16 +16,18 @@ public class Pressure extends SensorBase {
     private float pressure;
     private float temperature;
 
+    private final byte[] data = new byte[12];
+    private final ByteBuffer buffer = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+
     public Pressure(Wishbone wb) {
         super(wb);
     }
 
     public void read (){
-        byte[] data = new byte[12];
         wb.SpiRead((short) (kMCUBaseAddress+(kMemoryOffsetPressure >> 1)),data,12);
-        this.altitude= ByteBuffer.wrap(data,0,4).order(ByteOrder.LITTLE_ENDIAN).getFloat();
-        this.pressure= ByteBuffer.wrap(data,4,4).order(ByteOrder.LITTLE_ENDIAN).getFloat();
-        this.temperature= ByteBuffer.wrap(data,8,4).order(ByteOrder.LITTLE_ENDIAN).getFloat();
+        this.altitude= buffer.getFloat(0);
+        this.pressure= buffer.getFloat(4);
+        this.temperature= buffer.getFloat(8);
     }
 
     public float getAltitude() {
@@ -9,14 +9,16 @@ import java.nio.ByteOrder;
 
 public class UV extends SensorBase {
 
+    private final byte[] data = new byte[4];
+    private final ByteBuffer buffer = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+
     public UV(Wishbone wb) {
         super(wb);
     }
 
     public float read (){
-        byte[] data = new byte[8];
         wb.SpiRead((short) (kMCUBaseAddress+(kMemoryOffsetUV >> 1)),data,4);
-        return ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN).getFloat();
+        return buffer.getFloat(0);
     }
 
 }
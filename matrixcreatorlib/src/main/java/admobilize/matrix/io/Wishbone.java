@@ -3,8 +3,6 @@ package admobilize.matrix.io;
 import com.google.android.things.pio.SpiDevice;
 
 import java.io.IOException;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Created by Antonio Vanegas @hpsaturn on 12/19/16.
@@ -20,7 +18,14 @@ public class Wishbone {
     private byte[] tx_buffer_ = new byte[4096];
     private byte[] rx_buffer_ = new byte[4096];
 
-    private final Lock _mutex = new ReentrantLock(true);
+    private final BusScheduler scheduler = new BusScheduler();
+
+    // latest LED frame waiting for the bus, guarded by itself
+    private final byte[] pendingFrame = new byte[4096 - 2];
+    private short pendingFrameAdd;
+    private int pendingFrameLength;
+    private boolean framePending;
+    private volatile long coalescedFrames;
 
     private SpiDevice spiDevice;
 
@@ -32,10 +37,19 @@ public class Wishbone {
         this.spiDevice = spiDevice;
     }
 
-    // Full-duplex data transfer
+    public BusScheduler getScheduler() {
+        return scheduler;
+    }
+
+    // Full-duplex data transfer, the response lands in the shared rx buffer so it
+    // takes the bus like the other accesses (not to be called while holding it)
     public void spiTransfer(SpiDevice device, byte[] tx_buffer) throws IOException {
-        byte[] response = new byte[tx_buffer.length];
-        device.transfer(tx_buffer, response, tx_buffer.length);
+        scheduler.acquire(BusScheduler.PRIORITY_SENSOR);
+        try {
+            device.transfer(tx_buffer, rx_buffer_, tx_buffer.length);
+        } finally {
+            scheduler.release();
+        }
     }
 
     public void spiTransfer(SpiDevice device, byte[] tx_buffer, byte[] rx_buffer, int lenght) throws IOException {
@@ -43,24 +57,32 @@ public class Wishbone {
     }
 
     public Boolean SpiWrite16(short add, byte[] data) {
-        _mutex.lock();
+        return SpiWrite16(add, data, BusScheduler.PRIORITY_SENSOR);
+    }
+
+    public Boolean SpiWrite16(short add, byte[] data, int priority) {
+        scheduler.acquire(priority);
         try {
             tx_buffer_[0] = WR0(add);
             tx_buffer_[1] = WR1(add, (byte) 0);
             tx_buffer_[2] = data[0];
             tx_buffer_[3] = data[1];
-            spiTransfer(spiDevice,tx_buffer_);
+            spiTransfer(spiDevice,tx_buffer_,rx_buffer_,4);
             return true;
         } catch (IOException e) {
             e.printStackTrace();
             return false;
         } finally {
-            _mutex.unlock();
+            scheduler.release();
         }
     }
 
     public Boolean SpiWrite(short add, byte [] data, short inc) {
-        _mutex.lock();
+        return SpiWrite(add, data, inc, BusScheduler.PRIORITY_SENSOR);
+    }
+
+    public Boolean SpiWrite(short add, byte [] data, short inc, int priority) {
+        scheduler.acquire(priority);
         try {
             tx_buffer_[0] = WR0(add);
             tx_buffer_[1] = WR1(add, inc);
@@ -72,12 +94,88 @@ public class Wishbone {
             e.printStackTrace();
             return false;
         } finally {
-            _mutex.unlock();
+            scheduler.release();
         }
     }
 
+    /**
+     * Writes length bytes to consecutive 16 bit registers starting at add, in a
+     * single transaction using the address auto-increment of the FPGA.
+     */
+    public Boolean SpiWriteBurst(short add, byte[] data, int length) {
+        return SpiWriteBurst(add, data, length, BusScheduler.PRIORITY_SENSOR);
+    }
+
+    public Boolean SpiWriteBurst(short add, byte[] data, int length, int priority) {
+        if (length + 2 > tx_buffer_.length) return false;
+        scheduler.acquire(priority);
+        try {
+            tx_buffer_[0] = WR0(add);
+            tx_buffer_[1] = WR1(add, (short) 1);
+            System.arraycopy(data,0,tx_buffer_,2,length);
+            spiTransfer(spiDevice,tx_buffer_,rx_buffer_,length+2);
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            scheduler.release();
+        }
+    }
+
+    /**
+     * Burst write at LED priority. While a frame is already queued for the bus a
+     * newer frame for the same address replaces it instead of queueing behind it,
+     * so only the latest image is sent.
+     */
+    public Boolean SpiWriteFrame(short add, byte[] data, int length) {
+        if (length > pendingFrame.length) return false;
+        boolean otherAddress;
+        synchronized (pendingFrame) {
+            otherAddress = framePending && pendingFrameAdd != add;
+            if (!otherAddress) {
+                System.arraycopy(data, 0, pendingFrame, 0, length);
+                pendingFrameAdd = add;
+                pendingFrameLength = length;
+                if (framePending) {
+                    coalescedFrames++;
+                    return true;
+                }
+                framePending = true;
+            }
+        }
+        if (otherAddress) return SpiWriteBurst(add, data, length, BusScheduler.PRIORITY_LED);
+        scheduler.acquire(BusScheduler.PRIORITY_LED);
+        try {
+            int frameLength;
+            synchronized (pendingFrame) {
+                tx_buffer_[0] = WR0(pendingFrameAdd);
+                tx_buffer_[1] = WR1(pendingFrameAdd, (short) 1);
+                System.arraycopy(pendingFrame, 0, tx_buffer_, 2, pendingFrameLength);
+                frameLength = pendingFrameLength;
+                framePending = false;
+            }
+            spiTransfer(spiDevice, tx_buffer_, rx_buffer_, frameLength + 2);
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            scheduler.release();
+        }
+    }
+
+    public long getCoalescedFrames() {
+        return coalescedFrames;
+    }
+
     public Boolean SpiReadBurst(short add, byte [] data, int length) {
-        _mutex.lock();
+        return SpiReadBurst(add, data, length, BusScheduler.PRIORITY_SENSOR);
+    }
+
+    public Boolean SpiReadBurst(short add, byte [] data, int length, int priority) {
+        if (length + 2 > rx_buffer_.length) return false;
+        scheduler.acquire(priority);
         try {
             tx_buffer_[0] = RD0(add);
             tx_buffer_[1] = RD1(add, (short) 1);
@@ -89,20 +187,17 @@ public class Wishbone {
             e.printStackTrace();
             return false;
         } finally {
-            _mutex.unlock();
+            scheduler.release();
         }
     }
 
+    // Multi-word read in a single auto-increment burst instead of one transaction per word
     public Boolean SpiRead(short add, byte[] data, int length) {
-        for (short w = 0; w < (length / 2); w++) {
-//            if(DEBUG) Log.d(TAG,"spiRead word:"+w);
-            if (!SpiRead16((short)(add + w),data, w)) return false;
-        }
-        return true;
+        return SpiReadBurst(add, data, length, BusScheduler.PRIORITY_SENSOR);
     }
 
     public Boolean SpiRead16(short add, byte[] data, int inc) {
-        _mutex.lock();
+        scheduler.acquire(BusScheduler.PRIORITY_SENSOR);
         try {
             int length = 2;
             tx_buffer_[0] = RD0(add);
@@ -117,7 +212,7 @@ public class Wishbone {
             e.printStackTrace();
             return false;
         } finally {
-            _mutex.unlock();
+            scheduler.release();
         }
     }
 
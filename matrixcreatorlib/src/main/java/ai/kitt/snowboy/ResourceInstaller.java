@@ -0,0 +1,244 @@
+package ai.kitt.snowboy;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.content.res.AssetFileDescriptor;
+import android.content.res.AssetManager;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.util.Properties;
+import java.util.zip.CRC32;
+
+import admobilize.matrix.io.AudioMetrics;
+
+/**
+ * Installs the Snowboy resources and models from the assets into the workspace
+ * on its own thread. A manifest in the workspace keeps the size and CRC32 of
+ * every installed file and the install time of the app they came from: when the
+ * app was not updated and the files still have their sizes nothing is read at
+ * all, otherwise only the assets whose CRC differs from the manifest are copied,
+ * through a temporary file renamed into place.
+ */
+public class ResourceInstaller {
+
+    private static final String TAG = ResourceInstaller.class.getSimpleName();
+
+    private static final String MANIFEST = ".manifest";
+    private static final String KEY_APP_UPDATE_TIME = "app.lastUpdateTime";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Context context;
+    private final String assetsDir;
+    private final File workspace;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int copied;
+    private int skipped;
+
+    public ResourceInstaller(Context context, String assetsDir, String workspace) {
+        this.context = context.getApplicationContext();
+        this.assetsDir = assetsDir;
+        this.workspace = new File(workspace);
+    }
+
+    /**
+     * Installs on a new thread, then posts onDone to handler. onDone is not run when
+     * a file could not be installed: the detector would load partial models and
+     * crash in native code.
+     */
+    public void install(final Handler handler, final Runnable onDone) {
+        new Thread("resourceInstallerThread") {
+            @Override
+            public void run() {
+                if (installNow()) {
+                    handler.post(onDone);
+                } else {
+                    Log.e(TAG, "[STARTUP] resources missing in " + workspace
+                            + ", hotword detection not started");
+                }
+            }
+        }.start();
+    }
+
+    /**
+     * Blocking.
+     * @return false when a file could not be installed
+     */
+    public synchronized boolean installNow() {
+        long start = SystemClock.elapsedRealtime();
+        copied = 0;
+        skipped = 0;
+        Properties manifest = readManifest();
+        String appUpdateTime = Long.toString(appUpdateTime());
+        boolean ok;
+        if (appUpdateTime.equals(manifest.getProperty(KEY_APP_UPDATE_TIME)) && installed(manifest)) {
+            ok = true;
+        } else {
+            ok = install(assetsDir, workspace, manifest);
+            if (ok) manifest.setProperty(KEY_APP_UPDATE_TIME, appUpdateTime);
+            ok &= writeManifest(manifest);
+        }
+        long elapsed = SystemClock.elapsedRealtime() - start;
+        AudioMetrics.histogram("startup.resources_ms").record(elapsed);
+        Log.i(TAG, "[STARTUP] resources " + (ok ? "ready" : "FAILED") + " in " + elapsed + "ms, "
+                + copied + " copied, " + skipped + " up to date");
+        return ok;
+    }
+
+    // Fast path: every file of the manifest is there with its size
+    private boolean installed(Properties manifest) {
+        boolean any = false;
+        for (String key : manifest.stringPropertyNames()) {
+            if (!key.endsWith(".size")) continue;
+            File file = new File(workspace, key.substring(0, key.length() - ".size".length()));
+            if (!Long.toString(file.length()).equals(manifest.getProperty(key))) return false;
+            any = true;
+            skipped++;
+        }
+        return any;
+    }
+
+    private boolean install(String assetPath, File dst, Properties manifest) {
+        AssetManager assets = context.getAssets();
+        String[] names;
+        try {
+            names = assets.list(assetPath);
+        } catch (IOException e) {
+            Log.e(TAG, "cannot list " + assetPath, e);
+            return false;
+        }
+        if (names.length == 0 && !assetPath.equals(assetsDir)) return installFile(assetPath, dst, manifest);
+        if (!dst.isDirectory() && !dst.mkdirs()) {
+            Log.e(TAG, "mkdir failed: " + dst);
+            return false;
+        }
+        boolean ok = true;
+        for (String name : names) ok &= install(assetPath + "/" + name, new File(dst, name), manifest);
+        return ok;
+    }
+
+    private boolean installFile(String assetPath, File dst, Properties manifest) {
+        String key = assetPath.substring(assetsDir.length() + 1); // path in the workspace
+        try {
+            long crc = assetCrc(assetPath);
+            String expected = Long.toHexString(crc);
+            if (expected.equals(manifest.getProperty(key + ".crc"))
+                    && Long.toString(dst.length()).equals(manifest.getProperty(key + ".size"))) {
+                skipped++;
+                return true;
+            }
+            File tmp = new File(dst.getPath() + ".tmp");
+            long size = copy(assetPath, tmp);
+            if (!tmp.renameTo(dst)) throw new IOException("cannot rename " + tmp + " to " + dst);
+            manifest.setProperty(key + ".size", Long.toString(size));
+            manifest.setProperty(key + ".crc", expected);
+            copied++;
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "cannot install " + assetPath + " to " + dst, e);
+            manifest.remove(key + ".size");
+            manifest.remove(key + ".crc");
+            return false;
+        }
+    }
+
+    private long assetCrc(String assetPath) throws IOException {
+        CRC32 crc = new CRC32();
+        try (InputStream in = context.getAssets().open(assetPath, AssetManager.ACCESS_STREAMING)) {
+            int count;
+            while ((count = in.read(buffer)) != -1) crc.update(buffer, 0, count);
+        }
+        return crc.getValue();
+    }
+
+    // Channel to channel when the asset is stored uncompressed, big buffers otherwise
+    private long copy(String assetPath, File dst) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(dst)) {
+            long size;
+            AssetFileDescriptor fd = openFd(assetPath);
+            if (fd != null) {
+                try {
+                    FileChannel source = new FileInputStream(fd.getFileDescriptor()).getChannel();
+                    FileChannel target = out.getChannel();
+                    size = fd.getLength();
+                    long position = 0;
+                    while (position < size) {
+                        long sent = source.transferTo(fd.getStartOffset() + position, size - position, target);
+                        if (sent <= 0) throw new IOException("short transfer of " + assetPath);
+                        position += sent;
+                    }
+                } finally {
+                    fd.close();
+                }
+            } else {
+                size = copyStream(assetPath, out);
+            }
+            out.getFD().sync();
+            return size;
+        }
+    }
+
+    private long copyStream(String assetPath, OutputStream out) throws IOException {
+        long size = 0;
+        try (InputStream in = context.getAssets().open(assetPath, AssetManager.ACCESS_STREAMING)) {
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+                size += count;
+            }
+        }
+        return size;
+    }
+
+    // Only works for assets aapt left uncompressed
+    private AssetFileDescriptor openFd(String assetPath) {
+        try {
+            return context.getAssets().openFd(assetPath);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private long appUpdateTime() {
+        try {
+            return context.getPackageManager()
+                    .getPackageInfo(context.getPackageName(), 0).lastUpdateTime;
+        } catch (PackageManager.NameNotFoundException e) {
+            return 0;
+        }
+    }
+
+    private Properties readManifest() {
+        Properties manifest = new Properties();
+        File file = new File(workspace, MANIFEST);
+        if (!file.exists()) return manifest;
+        try (InputStream in = new FileInputStream(file)) {
+            manifest.load(in);
+        } catch (IOException | IllegalArgumentException e) {
+            Log.w(TAG, "ignoring unreadable " + file, e);
+            manifest.clear();
+        }
+        return manifest;
+    }
+
+    private boolean writeManifest(Properties manifest) {
+        File file = new File(workspace, MANIFEST);
+        File tmp = new File(workspace, MANIFEST + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            manifest.store(out, null);
+            out.getFD().sync();
+        } catch (IOException e) {
+            Log.e(TAG, "cannot write " + file, e);
+            return false;
+        }
+        return tmp.renameTo(file);
+    }
+}